@@ -7,6 +7,11 @@ import edu.puc.mecolab.pools.concurrent.SynchronizedQueue;
 import edu.puc.mecolab.pools.concurrent.UnboundedTotalLockFreeQueue;
 import edu.puc.mecolab.pools.concurrent.UnboundedTotalQueue;
 import edu.puc.mecolab.pools.concurrent.UnsafePool;
+import edu.puc.mecolab.spinlocks.VirtualThreads;
+import edu.puc.mecolab.spinlocks.concurrent.SpinPolicy;
+import edu.puc.mecolab.spinlocks.locks.CLHLock;
+import edu.puc.mecolab.spinlocks.locks.MCSLock;
+import edu.puc.mecolab.spinlocks.locks.TTASLock;
 
 import java.util.Random;
 import java.util.concurrent.Semaphore;
@@ -23,6 +28,12 @@ public class ProducerConsumer {
     private static final int ITERATIONS = 1000000;
     private static final int CAPACITY = 100;
 
+    /**
+     * Whether to run each producer and consumer on a virtual thread (see VirtualThreads), if the JVM supports them.
+     * With virtual threads, there may be thousands of producers and consumers (lower ITERATIONS accordingly).
+     */
+    private static final boolean VIRTUAL_THREADS = false;
+
     private enum ExecutorType { CONSUMER, PRODUCER }
 
     private Semaphore mSemaphore;
@@ -38,6 +49,15 @@ public class ProducerConsumer {
         // mShinyObjectPool = new UnboundedTotalLockFreeQueue<>();
         // mShinyObjectPool = new SynchronizedQueue<>();
 
+        // Same two-lock queues, with spin locks instead of ReentrantLock
+        // mShinyObjectPool = new PartialBoundedQueue<>(CAPACITY, new TTASLock(SpinPolicy.YIELD), new TTASLock(SpinPolicy.YIELD));
+        // mShinyObjectPool = new UnboundedTotalQueue<>(new CLHLock(), new CLHLock());
+        // mShinyObjectPool = new UnboundedTotalQueue<>(new MCSLock(), new MCSLock());
+
+        // With VIRTUAL_THREADS, only locks that end up parking let the virtual threads share their carriers
+        // mShinyObjectPool = new UnboundedTotalQueue<>(new TTASLock(SpinPolicy.spinThenPark(100, 10000)),
+        //         new TTASLock(SpinPolicy.spinThenPark(100, 10000)));
+
         mSemaphore = new Semaphore(- (NUMBER_OF_CONSUMERS + NUMBER_OF_PRODUCERS) + 1);
     }
 
@@ -53,8 +73,12 @@ public class ProducerConsumer {
 
         long startTime = System.currentTimeMillis();
 
-        for (Thread thread : executors) {
-            thread.start();
+        for (Executor executor : executors) {
+            VirtualThreads.start(executor, VIRTUAL_THREADS);
+        }
+        // Only known for sure once a thread was started.
+        if (VIRTUAL_THREADS && !VirtualThreads.isSupported()) {
+            System.out.println("WARNING: virtual threads are not supported, using platform threads");
         }
 
         try {
@@ -68,7 +92,7 @@ public class ProducerConsumer {
         System.out.println("Program execution time: " + (endTime - startTime));
     }
 
-    private class Executor extends Thread {
+    private class Executor implements Runnable {
         private ExecutorType mExecutorType;
         private Random mRandom;
         private int mSum = 0;
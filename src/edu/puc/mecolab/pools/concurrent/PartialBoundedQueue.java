@@ -2,6 +2,7 @@ package edu.puc.mecolab.pools.concurrent;
 
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
@@ -12,11 +13,14 @@ import java.util.concurrent.locks.ReentrantLock;
  * For this implementation, the queue is implemented as a linked list, in which this class only has references to the
  * head and tail of the list. Supports at most one consumer and producer concurrently. By ensuring consumption only
  * affects the head, and production only affects the tail, we enable both operations to be run simultaneously, as long as
- * head != tail.
+ * head != tail.<br>
+ * <br>
+ * Both locks are {@link ReentrantLock ReentrantLocks} by default, but any {@link Lock} supporting conditions may be used
+ * instead (e.g. the spin locks in {@link edu.puc.mecolab.spinlocks.locks}).
  */
 public class PartialBoundedQueue<T> implements Pool<T> {
-    private ReentrantLock mEnqueueLock;
-    private ReentrantLock mDequeueLock;
+    private Lock mEnqueueLock;
+    private Lock mDequeueLock;
 
     private Condition mNotEmptyCondition;
     private Condition mNotFullCondition;
@@ -28,6 +32,15 @@ public class PartialBoundedQueue<T> implements Pool<T> {
     private Node<T> mTail;
 
     public PartialBoundedQueue(int capacity) {
+        this(capacity, new ReentrantLock(), new ReentrantLock());
+    }
+
+    /**
+     * @param capacity The maximum number of elements.
+     * @param enqueueLock Lock used by producers. Must be a different object than dequeueLock.
+     * @param dequeueLock Lock used by consumers.
+     */
+    public PartialBoundedQueue(int capacity, Lock enqueueLock, Lock dequeueLock) {
         mCapacity = capacity;
 
         // In its initial state, both head and tail are set to an arbitrary value we call a sentinel. Its value is
@@ -39,10 +52,10 @@ public class PartialBoundedQueue<T> implements Pool<T> {
 
         mSize = new AtomicInteger(0);
 
-        mEnqueueLock = new ReentrantLock();
+        mEnqueueLock = enqueueLock;
         mNotFullCondition = mEnqueueLock.newCondition();
 
-        mDequeueLock = new ReentrantLock();
+        mDequeueLock = dequeueLock;
         mNotEmptyCondition = mDequeueLock.newCondition();
     }
 
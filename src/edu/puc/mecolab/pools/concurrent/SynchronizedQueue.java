@@ -9,7 +9,8 @@ import java.util.concurrent.locks.ReentrantLock;
  * <br>
  * In order to ensure a coordinated access to the shared resources, access to the critical section is controlled
  * through a lock object. For both queueing and dequeueing, only one thread is allowed. As such, this implementation
- * has very little support for actual concurrency, therefore it is quite slow.
+ * has very little support for actual concurrency, therefore it is quite slow. The lock is a {@link ReentrantLock} by
+ * default, but any {@link Lock} supporting conditions may be used instead.
  */
 public class SynchronizedQueue<T> implements Pool<T> {
     /**
@@ -25,7 +26,11 @@ public class SynchronizedQueue<T> implements Pool<T> {
     private Condition mCondition;
 
     public SynchronizedQueue() {
-        mLock = new ReentrantLock();
+        this(new ReentrantLock());
+    }
+
+    public SynchronizedQueue(Lock lock) {
+        mLock = lock;
         mCondition = mLock.newCondition();
     }
 
@@ -1,5 +1,6 @@
 package edu.puc.mecolab.pools.concurrent;
 
+import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
@@ -9,18 +10,29 @@ import java.util.concurrent.locks.ReentrantLock;
  * For this implementation, the queue is implemented as a linked list, in which this class only has references to the
  * head and tail of the list. Supports at most one consumer and producer concurrently. By ensuring consumption only
  * affects the head, and production only affects the tail, we enable both operations to be run simultaneously, as long as
- * head != tail.
+ * head != tail.<br>
+ * <br>
+ * Both locks are {@link ReentrantLock ReentrantLocks} by default, but any {@link Lock} may be used instead (e.g. the
+ * spin locks in {@link edu.puc.mecolab.spinlocks.locks}).
  */
 public class UnboundedTotalQueue<T> implements Pool<T> {
-    private ReentrantLock mEnqueueLock;
-    private ReentrantLock mDequeueLock;
+    private Lock mEnqueueLock;
+    private Lock mDequeueLock;
 
     private Node<T> mHead;
     private Node<T> mTail;
 
     public UnboundedTotalQueue() {
-        mEnqueueLock = new ReentrantLock();
-        mDequeueLock = new ReentrantLock();
+        this(new ReentrantLock(), new ReentrantLock());
+    }
+
+    /**
+     * @param enqueueLock Lock used by producers. Must be a different object than dequeueLock.
+     * @param dequeueLock Lock used by consumers.
+     */
+    public UnboundedTotalQueue(Lock enqueueLock, Lock dequeueLock) {
+        mEnqueueLock = enqueueLock;
+        mDequeueLock = dequeueLock;
 
         // In its initial state, both head and tail are set to an arbitrary value we call a sentinel. Its value is
         // meaningless and should not be considered as a valid element of the queue, but it does a help with
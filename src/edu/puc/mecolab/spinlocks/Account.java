@@ -9,4 +9,13 @@ public abstract class Account {
     public abstract void withdraw(int amount);
 
     public abstract int getAmount();
+
+    /**
+     * Implementation specific figures gathered during execution, if any. Printed by the harness once it is done.
+     *
+     * @return A human readable summary, or null if there is nothing to report.
+     */
+    public String getStatistics() {
+        return null;
+    }
 }
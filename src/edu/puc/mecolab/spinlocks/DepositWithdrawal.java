@@ -1,22 +1,50 @@
 package edu.puc.mecolab.spinlocks;
 
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
 import java.util.Random;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.locks.ReentrantLock;
 
+import edu.puc.mecolab.spinlocks.concurrent.AdaptiveLockBankAccount;
+import edu.puc.mecolab.spinlocks.concurrent.AsyncBankAccount;
 import edu.puc.mecolab.spinlocks.concurrent.AtomicBankAccount;
 import edu.puc.mecolab.spinlocks.concurrent.BackoffLockBankAccount;
+import edu.puc.mecolab.spinlocks.concurrent.BiasedLockBankAccount;
 import edu.puc.mecolab.spinlocks.concurrent.CLHLockBankAccount;
+import edu.puc.mecolab.spinlocks.concurrent.CohortLockBankAccount;
+import edu.puc.mecolab.spinlocks.concurrent.CombiningTreeBankAccount;
 import edu.puc.mecolab.spinlocks.concurrent.CompositeLockBankAccount;
+import edu.puc.mecolab.spinlocks.concurrent.DelegationBankAccount;
+import edu.puc.mecolab.spinlocks.concurrent.EliminationBankAccount;
 import edu.puc.mecolab.spinlocks.concurrent.FastPathCompositeLockBankAccount;
+import edu.puc.mecolab.spinlocks.concurrent.FlatCombiningBankAccount;
+import edu.puc.mecolab.spinlocks.concurrent.LockBankAccount;
+import edu.puc.mecolab.spinlocks.concurrent.MCSLockBankAccount;
+import edu.puc.mecolab.spinlocks.concurrent.MalthusianBankAccount;
 import edu.puc.mecolab.spinlocks.concurrent.MonitorBankAccount;
 import edu.puc.mecolab.spinlocks.concurrent.PaddedQueueLockBankAccount;
+import edu.puc.mecolab.spinlocks.concurrent.PartitionedTicketLockBankAccount;
 import edu.puc.mecolab.spinlocks.concurrent.PrimitiveLockBankAccount;
 import edu.puc.mecolab.spinlocks.concurrent.PrimitiveSynchronizedBankAccount;
+import edu.puc.mecolab.spinlocks.concurrent.PriorityLockBankAccount;
 import edu.puc.mecolab.spinlocks.concurrent.QueueLockBankAccount;
+import edu.puc.mecolab.spinlocks.concurrent.ReaderPreferenceRWLockBankAccount;
+import edu.puc.mecolab.spinlocks.concurrent.ScalableReaderRWLockBankAccount;
+import edu.puc.mecolab.spinlocks.concurrent.SeqLockBankAccount;
+import edu.puc.mecolab.spinlocks.concurrent.SpinPolicy;
+import edu.puc.mecolab.spinlocks.concurrent.StripedBankAccount;
 import edu.puc.mecolab.spinlocks.concurrent.TASLockBankAccount;
 import edu.puc.mecolab.spinlocks.concurrent.TTASLockBankAccount;
+import edu.puc.mecolab.spinlocks.concurrent.TicketLockBankAccount;
 import edu.puc.mecolab.spinlocks.concurrent.TimeoutLockBankAccount;
 import edu.puc.mecolab.spinlocks.concurrent.UnsafeBankAccount;
+import edu.puc.mecolab.spinlocks.concurrent.WriterPreferenceRWLockBankAccount;
+import edu.puc.mecolab.spinlocks.locks.CLHLock;
+import edu.puc.mecolab.spinlocks.locks.CompositeLock;
+import edu.puc.mecolab.spinlocks.locks.MCSLock;
+import edu.puc.mecolab.spinlocks.locks.TTASLock;
 
 /**
  * Created by jose on 2/23/17.
@@ -26,6 +54,31 @@ public class DepositWithdrawal {
     private static final int INITIAL_AMOUNT = 1000000;
     private static final int NUM_THREADS = 10;
 
+    /**
+     * Percentage of the operations that only read the balance (0 to 100). The rest are deposits and withdrawals.
+     */
+    private static final int READ_PERCENTAGE = 0;
+
+    /**
+     * Percentage of all operations performed by the first thread (0 to 100), the rest are split evenly among the other
+     * threads. 0 means every thread performs the same number of operations.
+     */
+    private static final int OWNER_PERCENTAGE = 0;
+
+    /**
+     * Number of threads (the first ones) whose operations are latency-critical. Accounts that support priorities (see
+     * PriorityLockBankAccount) give them the highest one, and everyone else the lowest. If not 0, the 99th percentile
+     * latency of each class of threads is reported, measured on one in every LATENCY_SAMPLING operations.
+     */
+    private static final int URGENT_THREADS = 0;
+    private static final int LATENCY_SAMPLING = 16;
+
+    /**
+     * Whether to run each thread's operations on a virtual thread (see VirtualThreads), if the JVM supports them. With
+     * virtual threads, NUM_THREADS may go to the thousands (lower ITERATIONS accordingly).
+     */
+    private static final boolean VIRTUAL_THREADS = false;
+
     private Account mBankAccount;
     private Semaphore mSemaphore;
 
@@ -40,6 +93,7 @@ public class DepositWithdrawal {
         // mBankAccount = new PrimitiveLockBankAccount(INITIAL_AMOUNT);
         // mBankAccount = new PrimitiveSynchronizedBankAccount(INITIAL_AMOUNT);
         // mBankAccount = new AtomicBankAccount(INITIAL_AMOUNT);
+        // mBankAccount = new StripedBankAccount(INITIAL_AMOUNT);
 
         // Illustration of the spin lock concept
         // ---
@@ -52,15 +106,105 @@ public class DepositWithdrawal {
         // mBankAccount = new QueueLockBankAccount(INITIAL_AMOUNT);
         // mBankAccount = new PaddedQueueLockBankAccount(INITIAL_AMOUNT);
         // mBankAccount = new CLHLockBankAccount(INITIAL_AMOUNT);
+        // mBankAccount = new MCSLockBankAccount(INITIAL_AMOUNT);
+
+        // Same queue locks, but waiting threads park after spinning for a while. Use them if NUM_THREADS > VIRTUAL CORES
+        // ---
+        // mBankAccount = new QueueLockBankAccount(INITIAL_AMOUNT, true);
+        // mBankAccount = new PaddedQueueLockBankAccount(INITIAL_AMOUNT, true);
+        // mBankAccount = new CLHLockBankAccount(INITIAL_AMOUNT, true);
+        // mBankAccount = new MCSLockBankAccount(INITIAL_AMOUNT, true);
+
+        // Same spin locks with another waiting policy (see SpinPolicy), e.g. spin hint, yield or nanosecond backoff
+        // ---
+        // mBankAccount = new TTASLockBankAccount(INITIAL_AMOUNT, SpinPolicy.HINT);
+        // mBankAccount = new MCSLockBankAccount(INITIAL_AMOUNT, SpinPolicy.YIELD);
+        // mBankAccount = new CLHLockBankAccount(INITIAL_AMOUNT, SpinPolicy.backoff(100, 10000));
+
+        // FIFO locks like the queue locks above, but without a limit on the number of threads
+        // ---
+        // mBankAccount = new TicketLockBankAccount(INITIAL_AMOUNT);
+        // mBankAccount = new PartitionedTicketLockBankAccount(INITIAL_AMOUNT);
 
         // Queue locks that sleep after failing to obtain the lock before a timeout elapses
         // ---
         // mBankAccount = new TimeoutLockBankAccount(INITIAL_AMOUNT);
 
+        // Hierarchical lock that keeps the lock within a cluster of threads (e.g. a socket) as long as possible
+        // ---
+        // mBankAccount = new CohortLockBankAccount(INITIAL_AMOUNT);
+
+        // Concurrency restriction: only a few threads compete for the wrapped account's lock, the rest are parked
+        // ---
+        // mBankAccount = new MalthusianBankAccount(new BackoffLockBankAccount(INITIAL_AMOUNT));
+        // mBankAccount = new MalthusianBankAccount(new CLHLockBankAccount(INITIAL_AMOUNT));
+
+        // Reader-writer locks, balance reads run concurrently (tweak READ_PERCENTAGE to see the difference)
+        // ---
+        // mBankAccount = new ReaderPreferenceRWLockBankAccount(INITIAL_AMOUNT);
+        // mBankAccount = new WriterPreferenceRWLockBankAccount(INITIAL_AMOUNT);
+        // mBankAccount = new ScalableReaderRWLockBankAccount(INITIAL_AMOUNT);
+
+        // Sequence lock, reads (of several variables at once) never block nor slow down writers
+        // ---
+        // mBankAccount = new SeqLockBankAccount(INITIAL_AMOUNT);
+
+        // Flat combining, the lock holder performs the operations of all waiting threads at once
+        // ---
+        // mBankAccount = new FlatCombiningBankAccount(INITIAL_AMOUNT);
+
+        // Elimination, concurrent deposits and withdrawals cancel each other out before reaching the wrapped account
+        // ---
+        // mBankAccount = new EliminationBankAccount(new TTASLockBankAccount(INITIAL_AMOUNT));
+        // mBankAccount = new EliminationBankAccount(new CLHLockBankAccount(INITIAL_AMOUNT));
+
+        // Delegation, a dedicated server thread performs all operations (compare with NUM_THREADS from 10 to 64)
+        // ---
+        // mBankAccount = new DelegationBankAccount(INITIAL_AMOUNT);
+
+        // Combining tree, threads combine their operations on their way up to the balance
+        // ---
+        // mBankAccount = new CombiningTreeBankAccount(INITIAL_AMOUNT);
+
+        // Adaptive lock, switches between CAS, TTAS with backoff and a queue lock depending on contention
+        // ---
+        // mBankAccount = new AdaptiveLockBankAccount(INITIAL_AMOUNT);
+
+        // Biased lock, for accounts mostly used by a single thread (set OWNER_PERCENTAGE to e.g. 99 to see the difference)
+        // ---
+        // mBankAccount = new BiasedLockBankAccount(INITIAL_AMOUNT);
+
+        // Locks that spin briefly and then park, which lets virtual threads give their carrier back (set
+        // VIRTUAL_THREADS to true, and NUM_THREADS to e.g. 10000). Monitors pin their carrier, spin locks keep it busy
+        // ---
+        // mBankAccount = new TTASLockBankAccount(INITIAL_AMOUNT, SpinPolicy.spinThenPark(100, 10000));
+        // mBankAccount = new TicketLockBankAccount(INITIAL_AMOUNT, SpinPolicy.spinThenPark(100, 10000));
+        // mBankAccount = new CLHLockBankAccount(INITIAL_AMOUNT, true);
+        // mBankAccount = new MCSLockBankAccount(INITIAL_AMOUNT, true);
+        // mBankAccount = new PrimitiveLockBankAccount(INITIAL_AMOUNT);
+
+        // Priority lock, urgent operations go first (set URGENT_THREADS to e.g. 1 and compare with the FIFO locks)
+        // ---
+        // mBankAccount = new PriorityLockBankAccount(INITIAL_AMOUNT);
+
+        // The spin locks as plain Locks (see the locks package), compared with ReentrantLock in the same setting
+        // ---
+        // mBankAccount = new LockBankAccount(INITIAL_AMOUNT, new ReentrantLock());
+        // mBankAccount = new LockBankAccount(INITIAL_AMOUNT, new TTASLock());
+        // mBankAccount = new LockBankAccount(INITIAL_AMOUNT, new CLHLock());
+        // mBankAccount = new LockBankAccount(INITIAL_AMOUNT, new MCSLock());
+        // mBankAccount = new LockBankAccount(INITIAL_AMOUNT, new CompositeLock());
+
+        // Asynchronous mutex, waiting operations are done by the common pool (threads here just wait for their futures)
+        // ---
+        // mBankAccount = new AsyncBankAccount(INITIAL_AMOUNT);
+
         // CompositeLock (high difficulty! this will be on the exam (¬‿¬) )
         // ---
         // mBankAccount = new CompositeLockBankAccount(INITIAL_AMOUNT);
         mBankAccount = new FastPathCompositeLockBankAccount(INITIAL_AMOUNT);
+        // mBankAccount = new CompositeLockBankAccount(INITIAL_AMOUNT, true);
+        // mBankAccount = new FastPathCompositeLockBankAccount(INITIAL_AMOUNT, true);
 
         mSemaphore = new Semaphore(- NUM_THREADS + 1);
 
@@ -69,13 +213,17 @@ public class DepositWithdrawal {
     public void execute() {
         Executor[] executors = new Executor[NUM_THREADS];
         for (int i = 0; i < executors.length; i++) {
-            executors[i] = new Executor(i);
+            executors[i] = new Executor(i, iterations(i));
         }
 
         long startTime = System.currentTimeMillis();
 
-        for (Thread thread : executors) {
-            thread.start();
+        for (Executor executor : executors) {
+            VirtualThreads.start(executor, VIRTUAL_THREADS);
+        }
+        // Only known for sure once a thread was started.
+        if (VIRTUAL_THREADS && !VirtualThreads.isSupported()) {
+            System.out.println("WARNING: virtual threads are not supported, using platform threads");
         }
 
         try {
@@ -87,40 +235,153 @@ public class DepositWithdrawal {
         long endTime = System.currentTimeMillis();
 
         int total = mBankAccount.getAmount();
+        long allocated = 0;
+        long iterations = 0;
         for (Executor executor : executors) {
             total += executor.mSum;
+            iterations += executor.mIterations;
+            // Negative if the JVM does not support measuring it.
+            allocated = allocated < 0 || executor.mAllocated < 0 ? -1 : allocated + executor.mAllocated;
         }
 
         System.out.println("Total: " + total);
         System.out.println("Program execution time: " + (endTime - startTime));
+        if (allocated >= 0) {
+            System.out.println(String.format("Allocated bytes per operation: %.2f",
+                    (double) allocated / iterations));
+        }
+
+        if (URGENT_THREADS > 0) {
+            System.out.println("99th percentile latency (urgent / other threads): " + percentile(executors, true, 0.99)
+                    + " / " + percentile(executors, false, 0.99) + " ns");
+        }
+
+        String statistics = mBankAccount.getStatistics();
+        if (statistics != null) System.out.println(statistics);
     }
 
-    private class Executor extends Thread {
+    /**
+     * @return The given percentile of the latencies sampled by the urgent (or the other) threads, or -1 if none.
+     */
+    private static long percentile(Executor[] executors, boolean urgent, double percentile) {
+        int count = 0;
+        for (Executor executor : executors) {
+            if (executor.mUrgent == urgent) count += executor.mSamples;
+        }
+        if (count == 0) return -1;
+
+        long[] latencies = new long[count];
+        int index = 0;
+        for (Executor executor : executors) {
+            if (executor.mUrgent != urgent) continue;
+            System.arraycopy(executor.mLatencies, 0, latencies, index, executor.mSamples);
+            index += executor.mSamples;
+        }
+        Arrays.sort(latencies);
+        return latencies[(int) Math.min(count - 1, Math.ceil(percentile * count) - 1)];
+    }
+
+    private class Executor implements Runnable {
         private Random mRandom;
+        private final int mIterations;
         private int mSum = 0;
+        private int mLastRead = 0;
+        private long mAllocated = 0;
 
-        private Executor(int seed) {
+        private final boolean mUrgent;
+        private final PriorityLockBankAccount mPriorityAccount;
+        private final int mPriority;
+        private final long[] mLatencies;
+        private int mSamples = 0;
+
+        private Executor(int seed, int iterations) {
             mRandom = new Random(seed);
+            mIterations = iterations;
+
+            mUrgent = seed < URGENT_THREADS;
+            mPriorityAccount = mBankAccount instanceof PriorityLockBankAccount
+                    ? (PriorityLockBankAccount) mBankAccount : null;
+            mPriority = mUrgent ? PriorityLockBankAccount.HIGHEST : PriorityLockBankAccount.LOWEST;
+            mLatencies = URGENT_THREADS > 0 ? new long[iterations / LATENCY_SAMPLING + 1] : null;
         }
 
         @Override
         public void run() {
-            for (int i = 0; i < ITERATIONS; i++) {
+            // Released even if the account throws, so that the harness ends (with a wrong total) instead of hanging.
+            try {
+                work();
+            } finally {
+                mSemaphore.release();
+            }
+        }
+
+        private void work() {
+            long allocated = getAllocatedBytes();
+
+            for (int i = 0; i < mIterations; i++) {
+                if (READ_PERCENTAGE > 0 && mRandom.nextInt(100) < READ_PERCENTAGE) {
+                    mLastRead = mBankAccount.getAmount();
+                    continue;
+                }
+
                 int choice = mRandom.nextInt(2);
                 int amount = mRandom.nextInt(1000);
+                boolean sample = mLatencies != null && i % LATENCY_SAMPLING == 0;
+                long start = sample ? System.nanoTime() : 0;
                 if (choice == 0) {
-                    mBankAccount.withdraw(amount);
+                    withdraw(amount);
                     mSum += amount;
                 } else {
-                    mBankAccount.deposit(amount);
+                    deposit(amount);
                     mSum -= amount;
                 }
+                if (sample) mLatencies[mSamples++] = System.nanoTime() - start;
 
                 // Uncomment for debugging purposes
                 // if (i % 100 == 0) System.out.println(i);
             }
 
-            mSemaphore.release();
+            mAllocated = allocated < 0 ? -1 : getAllocatedBytes() - allocated;
+        }
+
+        private void deposit(int amount) {
+            if (mPriorityAccount != null) {
+                mPriorityAccount.deposit(amount, mPriority);
+            } else {
+                mBankAccount.deposit(amount);
+            }
+        }
+
+        private void withdraw(int amount) {
+            if (mPriorityAccount != null) {
+                mPriorityAccount.withdraw(amount, mPriority);
+            } else {
+                mBankAccount.withdraw(amount);
+            }
         }
     }
+
+    /**
+     * @return The number of operations performed by the given thread (see OWNER_PERCENTAGE).
+     */
+    private static int iterations(int thread) {
+        if (OWNER_PERCENTAGE == 0 || NUM_THREADS == 1) return ITERATIONS;
+
+        long operations = (long) NUM_THREADS * ITERATIONS;
+        long owner = operations * OWNER_PERCENTAGE / 100;
+        return (int) (thread == 0 ? owner : (operations - owner) / (NUM_THREADS - 1));
+    }
+
+    /**
+     * @return The number of bytes allocated so far by the calling thread, or -1 if the JVM does not support measuring
+     * it (only HotSpot based JVMs do).
+     */
+    private static long getAllocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) return -1;
+
+        com.sun.management.ThreadMXBean hotspotBean = (com.sun.management.ThreadMXBean) bean;
+        if (!hotspotBean.isThreadAllocatedMemorySupported() || !hotspotBean.isThreadAllocatedMemoryEnabled()) return -1;
+        return hotspotBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
 }
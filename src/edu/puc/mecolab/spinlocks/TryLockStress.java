@@ -0,0 +1,118 @@
+package edu.puc.mecolab.spinlocks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongPredicate;
+
+import edu.puc.mecolab.spinlocks.concurrent.LockBankAccount;
+import edu.puc.mecolab.spinlocks.concurrent.PaddedQueueLockBankAccount;
+import edu.puc.mecolab.spinlocks.concurrent.QueueLockBankAccount;
+import edu.puc.mecolab.spinlocks.concurrent.SpinPolicy;
+import edu.puc.mecolab.spinlocks.locks.QueueLock;
+import edu.puc.mecolab.spinlocks.locks.SpinLock;
+
+/**
+ * Stress test for the locks that let threads give up waiting. More threads than slots share a small ring, and most of
+ * their attempts to get the lock time out. Each thread alternates deposits (which wait for the lock) with short timed
+ * attempts, incrementing a plain counter whenever an attempt succeeds, and yielding before releasing the lock so that
+ * the others pile up behind it. Both the balance and the counter must match
+ * what the threads did. A lock that loses a grant never finishes, so each run has a time limit.
+ */
+public class TryLockStress {
+    private static final int NUM_THREADS = 4;
+    private static final int SLOTS = 2;
+    private static final int ITERATIONS = 20000;
+
+    /**
+     * In nanoseconds.
+     */
+    private static final long TIMEOUT = 1000;
+    private static final long TIME_LIMIT = 60000;
+
+    private static long sCounter;
+
+    public static void main(String[] args) throws InterruptedException {
+        boolean ok = true;
+
+        QueueLockBankAccount queue = new QueueLockBankAccount(0, SLOTS, false, SpinPolicy.YIELD);
+        ok &= run("QueueLockBankAccount", queue, nanos -> queue.tryLock(nanos, TimeUnit.NANOSECONDS), queue::unlock);
+
+        QueueLockBankAccount parkingQueue = new QueueLockBankAccount(0, SLOTS, true, SpinPolicy.YIELD);
+        ok &= run("QueueLockBankAccount (spin then park)", parkingQueue,
+                nanos -> parkingQueue.tryLock(nanos, TimeUnit.NANOSECONDS), parkingQueue::unlock);
+
+        PaddedQueueLockBankAccount padded = new PaddedQueueLockBankAccount(0, SLOTS, false, SpinPolicy.YIELD);
+        ok &= run("PaddedQueueLockBankAccount", padded, nanos -> padded.tryLock(nanos, TimeUnit.NANOSECONDS),
+                padded::unlock);
+
+        PaddedQueueLockBankAccount parkingPadded = new PaddedQueueLockBankAccount(0, SLOTS, true, SpinPolicy.YIELD);
+        ok &= run("PaddedQueueLockBankAccount (spin then park)", parkingPadded,
+                nanos -> parkingPadded.tryLock(nanos, TimeUnit.NANOSECONDS), parkingPadded::unlock);
+
+        QueueLock lock = new QueueLock(SLOTS, SpinPolicy.YIELD);
+        ok &= run("QueueLock", new LockBankAccount(0, lock), nanos -> tryLock(lock, nanos), lock::unlock);
+
+        QueueLock untimedLock = new QueueLock(SLOTS, SpinPolicy.YIELD);
+        ok &= run("QueueLock (tryLock())", new LockBankAccount(0, untimedLock), nanos -> untimedLock.tryLock(),
+                untimedLock::unlock);
+
+        System.exit(ok ? 0 : 1);
+    }
+
+    private static boolean tryLock(SpinLock lock, long nanos) {
+        try {
+            return lock.tryLock(nanos, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * @return true if the run finished in time, and both the balance and the counter are right.
+     */
+    private static boolean run(String name, Account account, LongPredicate tryLock, Runnable unlock)
+            throws InterruptedException {
+        sCounter = 0;
+        long[] successes = new long[NUM_THREADS];
+
+        Thread[] threads = new Thread[NUM_THREADS];
+        for (int t = 0; t < NUM_THREADS; t++) {
+            int thread = t;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < ITERATIONS; i++) {
+                    if (i % 2 == 0) {
+                        account.deposit(1);
+                    } else if (tryLock.test(TIMEOUT)) {
+                        sCounter++;
+                        successes[thread]++;
+                        Thread.yield();
+                        unlock.run();
+                    }
+                }
+            });
+            // A hung run must not keep the program alive.
+            threads[t].setDaemon(true);
+            threads[t].start();
+        }
+
+        long deadline = System.currentTimeMillis() + TIME_LIMIT;
+        for (Thread thread : threads) {
+            thread.join(Math.max(1, deadline - System.currentTimeMillis()));
+            if (thread.isAlive()) {
+                System.out.println(name + ": FAILED, not done after " + TIME_LIMIT + " ms (balance "
+                        + account.getAmount() + ")");
+                return false;
+            }
+        }
+
+        long total = 0;
+        for (long success : successes) total += success;
+        int deposits = NUM_THREADS * (ITERATIONS / 2);
+        int attempts = NUM_THREADS * (ITERATIONS / 2);
+        boolean ok = account.getAmount() == deposits && sCounter == total;
+
+        System.out.println(name + ": " + (ok ? "OK" : "FAILED") + ", balance " + account.getAmount() + "/" + deposits
+                + ", counter " + sCounter + "/" + total + ", timeouts " + (attempts - total) + "/" + attempts);
+        return ok;
+    }
+}
@@ -0,0 +1,68 @@
+package edu.puc.mecolab.spinlocks;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+/**
+ * Starts the harnesses' workers on virtual threads, which are cheap enough to run thousands of them. Virtual threads
+ * were only added in Java 21, so Thread.startVirtualThread() is looked up at runtime; on older JVMs (or when it is a
+ * disabled preview feature, which is only found out by starting a thread), workers are started on platform threads
+ * instead.
+ *
+ * A virtual thread only gives up its carrier (platform) thread when it blocks or parks through java.util.concurrent:
+ * a virtual thread that spins keeps its carrier busy, and one blocked on a monitor (synchronized) pins it until Java
+ * 24. Only locks that spin briefly and then park scale with them.
+ */
+public final class VirtualThreads {
+    private static final MethodHandle START_VIRTUAL_THREAD = lookup();
+
+    /**
+     * Set once starting a virtual thread failed, i.e. they are a disabled preview feature (Java 19 and 20).
+     */
+    private static volatile boolean sDisabled;
+
+    private VirtualThreads() {}
+
+    /**
+     * @return true if workers can be started on virtual threads, as far as is known: if they are a disabled preview
+     * feature, this is only found out by the first call to start() asking for one.
+     */
+    public static boolean isSupported() {
+        return START_VIRTUAL_THREAD != null && !sDisabled;
+    }
+
+    /**
+     * Starts the task on a new thread: a virtual thread if asked for and supported, a platform thread otherwise.
+     *
+     * @return The thread the task runs on.
+     */
+    public static Thread start(Runnable task, boolean virtual) {
+        if (virtual && isSupported()) {
+            try {
+                return (Thread) START_VIRTUAL_THREAD.invokeExact(task);
+            } catch (UnsupportedOperationException e) {
+                sDisabled = true;
+            } catch (Throwable e) {
+                throw new AssertionError(e);
+            }
+        }
+
+        Thread thread = new Thread(task);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Only looks the method up, whether it works is found out by start(). Waiting for a test thread here could
+     * deadlock: a thread running code of this class waits for the class to be initialized first.
+     */
+    private static MethodHandle lookup() {
+        try {
+            return MethodHandles.lookup().findStatic(Thread.class, "startVirtualThread",
+                    MethodType.methodType(Thread.class, Runnable.class));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,279 @@
+package edu.puc.mecolab.spinlocks.concurrent;
+
+import edu.puc.mecolab.spinlocks.Account;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Self tuning lock that switches at runtime between three of the previous algorithms, depending on how contended it
+ * is: plain CAS spinning (as {@link TTASLockBankAccount}, the fastest one when there is little contention),
+ * {@link BackoffLockBankAccount TTAS with backoff}, and a {@link TicketLockBankAccount ticket} queue lock (the one that
+ * holds up best under heavy contention).
+ *
+ * The lock holder keeps track of the number of failed CAS attempts per acquisition, the length of the queue (while in
+ * queue mode) and a sample of critical section lengths. Every {@link AdaptiveLockBankAccount#WINDOW} acquisitions, it
+ * decides whether to switch to a more (or less) contention resistant algorithm.
+ *
+ * Switching is safe because of two rules: only the lock holder may switch, and it must hold the lock of both the old
+ * and the new mode while doing it; and a thread that acquired the lock of some mode only enters the critical section if
+ * that mode is still the current one (otherwise it releases the lock and starts over with the current mode). The CAS and
+ * backoff modes share a single lock word, so switching between them is just a matter of changing the mode.
+ */
+public class AdaptiveLockBankAccount extends Account {
+    private static final int CAS = 0;
+    private static final int BACKOFF = 1;
+    private static final int QUEUE = 2;
+
+    private static final String[] MODE_NAMES = {"CAS", "BACKOFF", "QUEUE"};
+
+    /**
+     * Number of acquisitions between two decisions.
+     */
+    private static final int WINDOW = 1024;
+
+    /**
+     * One out of this many critical sections is timed.
+     */
+    private static final int HOLD_TIME_SAMPLING = 64;
+
+    // Failed CAS attempts per acquisition past which (or under which) the algorithm is switched.
+    private static final double CAS_TO_BACKOFF_FAILURES = 0.5;
+    private static final double BACKOFF_TO_CAS_FAILURES = 0.05;
+    private static final double BACKOFF_TO_QUEUE_FAILURES = 2.0;
+
+    /**
+     * Critical sections longer than this are better served by a queue lock, even under moderate contention.
+     */
+    private static final long LONG_HOLD_NANOS = 1000;
+
+    /**
+     * Average number of threads ahead of an arriving thread under which the queue lock is abandoned.
+     */
+    private static final double QUEUE_TO_BACKOFF_DEPTH = 0.5;
+
+    private static final long MIN_BACKOFF_NANOS = 50;
+    private static final long MAX_BACKOFF_NANOS = 10000;
+    private static final long QUEUE_BACKOFF_NANOS = 100;
+
+    private int mAmount;
+
+    private volatile int mMode;
+
+    /**
+     * Lock word for both the CAS and the backoff modes.
+     */
+    private AtomicBoolean mFlag;
+
+    /**
+     * Ticket lock for the queue mode.
+     */
+    private AtomicInteger mNextTicket;
+    private volatile int mNowServing;
+
+    // The following variables are only accessed by the lock holder, no further synchronization is needed.
+    private boolean mHoldingFlag;
+    private int mWindowAcquisitions;
+    private long mWindowFailures;
+    private long mWindowDepth;
+    private long mWindowHoldNanos;
+    private int mWindowHoldSamples;
+    private long mHoldStart;
+    private int mSwitches;
+
+    private final SpinPolicy mSpinPolicy;
+
+    public AdaptiveLockBankAccount(int amount) {
+        this(amount, SpinPolicy.BUSY);
+    }
+
+    /**
+     * @param amount The initial amount.
+     * @param spinPolicy What waiting threads do each time they find the lock busy, and while backing off. Whatever the
+     * mode, waiting always goes through it.
+     */
+    public AdaptiveLockBankAccount(int amount, SpinPolicy spinPolicy) {
+        mAmount = amount;
+        mMode = CAS;
+        mFlag = new AtomicBoolean(false);
+        mNextTicket = new AtomicInteger(0);
+        mNowServing = 0;
+        mSpinPolicy = spinPolicy;
+    }
+
+    public void deposit(int amount) {
+        lock();
+        mAmount += amount;
+        unlock();
+    }
+
+    public void withdraw(int amount) {
+        lock();
+        mAmount -= amount;
+        unlock();
+    }
+
+    public int getAmount() {
+        return mAmount;
+    }
+
+    @Override
+    public String getStatistics() {
+        return "Final mode: " + MODE_NAMES[mMode] + ", mode switches: " + mSwitches;
+    }
+
+    private void lock() {
+        while (true) {
+            int mode = mMode;
+            if (mode == QUEUE) {
+                int depth = lockQueue();
+                if (mMode != QUEUE) {
+                    unlockQueue();
+                    continue;
+                }
+                mHoldingFlag = false;
+                mWindowDepth += depth;
+            } else {
+                int failures = lockFlag(mode == BACKOFF);
+                if (mMode == QUEUE) {
+                    mFlag.set(false);
+                    continue;
+                }
+                mHoldingFlag = true;
+                mWindowFailures += failures;
+            }
+
+            if (++mWindowAcquisitions % HOLD_TIME_SAMPLING == 0) mHoldStart = System.nanoTime();
+            return;
+        }
+    }
+
+    private void unlock() {
+        if (mHoldStart != 0) {
+            mWindowHoldNanos += System.nanoTime() - mHoldStart;
+            mWindowHoldSamples++;
+            mHoldStart = 0;
+        }
+
+        if (mWindowAcquisitions >= WINDOW) adapt();
+
+        if (mHoldingFlag) {
+            mFlag.set(false);
+        } else {
+            unlockQueue();
+        }
+    }
+
+    /**
+     * Decides which algorithm to use from now on, based on the last window of acquisitions. Switches it if needed.
+     */
+    private void adapt() {
+        double failures = (double) mWindowFailures / mWindowAcquisitions;
+        double depth = (double) mWindowDepth / mWindowAcquisitions;
+        long holdNanos = mWindowHoldSamples == 0 ? 0 : mWindowHoldNanos / mWindowHoldSamples;
+
+        int mode = mMode;
+        int next = mode;
+        switch (mode) {
+            case CAS:
+                if (failures > CAS_TO_BACKOFF_FAILURES) next = BACKOFF;
+                break;
+            case BACKOFF:
+                if (failures > BACKOFF_TO_QUEUE_FAILURES
+                        || (failures > CAS_TO_BACKOFF_FAILURES && holdNanos > LONG_HOLD_NANOS)) {
+                    next = QUEUE;
+                } else if (failures < BACKOFF_TO_CAS_FAILURES) {
+                    next = CAS;
+                }
+                break;
+            case QUEUE:
+                if (depth < QUEUE_TO_BACKOFF_DEPTH) next = BACKOFF;
+                break;
+        }
+
+        if (next != mode) switchMode(next);
+
+        mWindowAcquisitions = 0;
+        mWindowFailures = 0;
+        mWindowDepth = 0;
+        mWindowHoldNanos = 0;
+        mWindowHoldSamples = 0;
+    }
+
+    /**
+     * Switches the algorithm. Must be called by the lock holder, which keeps holding the lock once done.
+     */
+    private void switchMode(int next) {
+        mSwitches++;
+        if (mHoldingFlag && next == QUEUE) {
+            // Threads still holding a ticket from a previous queue period find out the mode changed and let go.
+            lockQueue();
+            mMode = next;
+            mFlag.set(false);
+            mHoldingFlag = false;
+        } else if (!mHoldingFlag) {
+            lockFlag(true);
+            mMode = next;
+            unlockQueue();
+            mHoldingFlag = true;
+        } else {
+            mMode = next;
+        }
+    }
+
+    /**
+     * TTAS, optionally with randomized exponential backoff after each failed attempt.
+     *
+     * @return The number of failed CAS attempts.
+     */
+    private int lockFlag(boolean backoff) {
+        int failures = 0;
+        int attempt = 0;
+        long limit = MIN_BACKOFF_NANOS;
+        while (true) {
+            while (mFlag.get()) {
+                mSpinPolicy.spin(attempt++);
+            }
+            if (mFlag.compareAndSet(false, true)) return failures;
+            failures++;
+
+            if (backoff) {
+                long deadline = System.nanoTime() + ThreadLocalRandom.current().nextLong(limit);
+                limit = Math.min(MAX_BACKOFF_NANOS, limit * 2);
+                while (System.nanoTime() - deadline < 0) {
+                    mSpinPolicy.spin(attempt++);
+                }
+            }
+        }
+    }
+
+    /**
+     * Same algorithm as {@link TicketLockBankAccount}.
+     *
+     * @return The number of threads that were ahead in the queue when the ticket was taken.
+     */
+    private int lockQueue() {
+        int ticket = mNextTicket.getAndIncrement();
+        int depth = ticket - mNowServing;
+
+        int attempt = 0;
+        while (true) {
+            int distance = ticket - mNowServing;
+            if (distance == 0) return depth;
+
+            if (distance > 1) {
+                long deadline = System.nanoTime() + (distance - 1) * QUEUE_BACKOFF_NANOS;
+                while (System.nanoTime() - deadline < 0) {
+                    mSpinPolicy.spin(attempt++);
+                }
+            } else {
+                mSpinPolicy.spin(attempt++);
+            }
+        }
+    }
+
+    private void unlockQueue() {
+        mNowServing = mNowServing + 1;
+    }
+}
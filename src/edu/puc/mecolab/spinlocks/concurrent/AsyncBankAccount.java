@@ -0,0 +1,59 @@
+package edu.puc.mecolab.spinlocks.concurrent;
+
+import edu.puc.mecolab.spinlocks.Account;
+import edu.puc.mecolab.spinlocks.locks.AsyncMutex;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * Account guarded by an {@link AsyncMutex}, for callers that must not block: depositAsync and withdrawAsync return a
+ * future completed once the operation is done, instead of waiting for the lock. When the account is not in use, the
+ * operation is done right away by the caller.
+ *
+ * The blocking operations wait for the asynchronous ones, so the account can be used by the harness as well.
+ */
+public class AsyncBankAccount extends Account {
+    private final AsyncMutex mMutex;
+    private int mAmount;
+
+    public AsyncBankAccount(int amount) {
+        mAmount = amount;
+        mMutex = new AsyncMutex();
+    }
+
+    /**
+     * @param amount The initial amount.
+     * @param executor Where operations that had to wait for the account are done.
+     */
+    public AsyncBankAccount(int amount, Executor executor) {
+        mAmount = amount;
+        mMutex = new AsyncMutex(executor);
+    }
+
+    public void deposit(int amount) {
+        depositAsync(amount).join();
+    }
+
+    public void withdraw(int amount) {
+        withdrawAsync(amount).join();
+    }
+
+    /**
+     * @return A future completed with the new amount once the deposit is done.
+     */
+    public CompletableFuture<Integer> depositAsync(int amount) {
+        return mMutex.withLock(() -> mAmount += amount);
+    }
+
+    /**
+     * @return A future completed with the new amount once the withdrawal is done.
+     */
+    public CompletableFuture<Integer> withdrawAsync(int amount) {
+        return mMutex.withLock(() -> mAmount -= amount);
+    }
+
+    public int getAmount() {
+        return mAmount;
+    }
+}
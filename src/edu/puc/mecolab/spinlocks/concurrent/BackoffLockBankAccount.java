@@ -2,21 +2,33 @@ package edu.puc.mecolab.spinlocks.concurrent;
 
 import edu.puc.mecolab.spinlocks.Account;
 
-import java.util.Random;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
- * TTAS locking implementation refined with a backoff mechanism.
+ * TTAS locking implementation refined with a backoff mechanism: a thread that finds the lock busy, or loses the race for
+ * it, waits for a while before looking again, which lowers contention on the flag. Each waiting thread backs off on its
+ * own, for a random time below a limit that doubles on each attempt (see {@link SpinPolicy#backoff(long, long)}).
  */
 public class BackoffLockBankAccount extends Account {
+    private static final long MIN_DELAY = 1000;
+    private static final long MAX_DELAY = 100000;
+
     private AtomicBoolean mFlag;
     private int mAmount;
-    private Backoff mBackoff;
+    private final SpinPolicy mSpinPolicy;
 
     public BackoffLockBankAccount(int amount) {
+        this(amount, SpinPolicy.backoff(MIN_DELAY, MAX_DELAY));
+    }
+
+    /**
+     * @param amount The initial amount.
+     * @param spinPolicy What threads do each time they find the lock busy or fail to take it.
+     */
+    public BackoffLockBankAccount(int amount, SpinPolicy spinPolicy) {
         mAmount = amount;
         mFlag = new AtomicBoolean(false);
-        mBackoff = new Backoff();
+        mSpinPolicy = spinPolicy;
     }
 
     public void deposit(int amount) {
@@ -36,46 +48,18 @@ public class BackoffLockBankAccount extends Account {
     }
 
     private void lock() {
+        // The attempt count lives on the stack, so each thread backs off according to its own failures.
+        int attempt = 0;
         while (true) {
-            while (mFlag.get()) {}
-            if (!mFlag.getAndSet(true)) {
-                return;
-            } else {
-                mBackoff.backoff();
+            while (mFlag.get()) {
+                mSpinPolicy.spin(attempt++);
             }
+            if (!mFlag.getAndSet(true)) return;
+            mSpinPolicy.spin(attempt++);
         }
-
     }
 
     private void unlock() {
         mFlag.set(false);
-        mBackoff.reset();
-    }
-
-    /**
-     * Reusable backoff helper class. Do not forget to call {@link Backoff#reset()} when successfully entering the
-     * critical section.
-     */
-    private class Backoff {
-        private final int MIN_DELAY = 1;
-        private final int MAX_DELAY = 100;
-
-        private int mLimit = MIN_DELAY;
-        private final Random mRandom = new Random();
-
-        public void backoff() {
-            int delay = mRandom.nextInt(mLimit);
-            mLimit = Math.min(MAX_DELAY, mLimit * 2);
-
-            try {
-                Thread.sleep(delay);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-        }
-
-        public void reset() {
-            mLimit = MIN_DELAY;
-        }
     }
 }
@@ -0,0 +1,170 @@
+package edu.puc.mecolab.spinlocks.concurrent;
+
+import edu.puc.mecolab.spinlocks.Account;
+import edu.puc.mecolab.spinlocks.locks.TTASLock;
+
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * Lock biased towards a single thread, for accounts that are almost always used by the same thread. The thread the
+ * lock is biased to (its owner) acquires and releases it without any atomic read-modify-write instruction: it raises
+ * a busy flag (a volatile store), checks that its bias has not been revoked (volatile loads), and lowers the flag again
+ * with an ordered store, which is just a plain store on x86. The volatile store is still a full fence, it is what
+ * keeps the owner and a revoking thread from missing each other.
+ *
+ * Every other thread goes through a {@link TTASLock} (see {@link TTASLockBankAccount}). While holding it, a thread that finds the
+ * lock biased revokes the bias: it marks the bias as revoked and waits until the owner's busy flag is down (or the
+ * owner thread is dead). This is Dekker's algorithm in both directions: the owner raises its flag then checks for a
+ * revocation, the revoking thread requests the revocation then checks the flag, so at least one of them sees the other.
+ * An owner that sees the revocation lowers its flag and takes the TTAS lock like everyone else.
+ *
+ * Once revoked, the lock is an unbiased TTAS lock. When a thread acquires it {@link BiasedLockBankAccount#REBIAS_RUN}
+ * times in a row, the lock is biased to that thread. Each bias gets its own record, so an owner that was preempted in
+ * the middle of its fast path can never interfere with a later bias.
+ */
+public class BiasedLockBankAccount extends Account {
+    /**
+     * Consecutive acquisitions of the unbiased lock by the same thread after which the lock is biased to it.
+     */
+    private static final int REBIAS_RUN = 1024;
+
+    private int mAmount;
+
+    /**
+     * The current bias, or null if the lock is not biased. Only replaced while holding mLock.
+     */
+    private volatile Bias mBias;
+
+    /**
+     * TTAS lock used by all threads but the owner, and by the owner once its bias has been revoked.
+     */
+    private TTASLock mLock;
+
+    // The following variables are only accessed by the lock holder, no further synchronization is needed.
+    /**
+     * The bias the lock was acquired through, or null if acquired through mLock.
+     */
+    private Bias mHeldBias;
+    private Thread mLastHolder;
+    private int mRun;
+
+    private long mBiasedAcquisitions;
+    private long mUnbiasedAcquisitions;
+    private int mRevocations;
+    private int mRebiases;
+
+    public BiasedLockBankAccount(int amount) {
+        this(amount, SpinPolicy.BUSY);
+    }
+
+    /**
+     * @param amount The initial amount.
+     * @param spinPolicy What threads waiting for the TTAS lock do each time they find it busy.
+     */
+    public BiasedLockBankAccount(int amount, SpinPolicy spinPolicy) {
+        mAmount = amount;
+        mLock = new TTASLock(spinPolicy);
+    }
+
+    public void deposit(int amount) {
+        lock();
+        mAmount += amount;
+        unlock();
+    }
+
+    public void withdraw(int amount) {
+        lock();
+        mAmount -= amount;
+        unlock();
+    }
+
+    public int getAmount() {
+        return mAmount;
+    }
+
+    @Override
+    public String getStatistics() {
+        long total = mBiasedAcquisitions + mUnbiasedAcquisitions;
+        double biased = total == 0 ? 0 : 100.0 * mBiasedAcquisitions / total;
+        return String.format("Biased acquisitions: %.2f%%", biased) + ", revocations: " + mRevocations
+                + ", rebiases: " + mRebiases;
+    }
+
+    private void lock() {
+        Thread me = Thread.currentThread();
+
+        Bias bias = mBias;
+        if (bias != null && bias.mOwner == me) {
+            bias.mBusy = 1;
+            if (!bias.mRevoked) {
+                mHeldBias = bias;
+                mBiasedAcquisitions++;
+                return;
+            }
+            // Our bias is being revoked, the revoking thread is waiting for us to step back.
+            bias.mBusy = 0;
+        }
+
+        mLock.lock();
+
+        bias = mBias;
+        if (bias != null) revoke(bias);
+        mUnbiasedAcquisitions++;
+
+        if (mLastHolder == me) {
+            if (++mRun >= REBIAS_RUN) rebias(me);
+        } else {
+            mLastHolder = me;
+            mRun = 1;
+        }
+    }
+
+    private void unlock() {
+        Bias bias = mHeldBias;
+        if (bias != null) {
+            // Must be cleared before releasing the lock, the next holder may set it.
+            mHeldBias = null;
+            Bias.BUSY.lazySet(bias, 0);
+        } else {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Must be called while holding mLock.
+     */
+    private void revoke(Bias bias) {
+        bias.mRevoked = true;
+        while (bias.mBusy != 0 && bias.mOwner.isAlive()) {
+            SpinHint.onSpinWait();
+        }
+        mBias = null;
+        mRevocations++;
+    }
+
+    /**
+     * Must be called while holding mLock, with the lock not biased. The lock is released through mLock as usual, the
+     * bias is used from the next acquisition on.
+     */
+    private void rebias(Thread owner) {
+        mBias = new Bias(owner);
+        mRun = 0;
+        mRebiases++;
+    }
+
+    private static class Bias {
+        private static final AtomicIntegerFieldUpdater<Bias> BUSY =
+                AtomicIntegerFieldUpdater.newUpdater(Bias.class, "mBusy");
+
+        private final Thread mOwner;
+        // Raised (1) by the owner while it holds, or is about to take, the lock through this bias. Must be declared
+        // volatile.
+        private volatile int mBusy;
+        // Set once by the revoking thread, never cleared. Must be declared volatile.
+        private volatile boolean mRevoked;
+
+        private Bias(Thread owner) {
+            mOwner = owner;
+        }
+    }
+}
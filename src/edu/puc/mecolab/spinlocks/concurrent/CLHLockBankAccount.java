@@ -2,13 +2,26 @@ package edu.puc.mecolab.spinlocks.concurrent;
 
 import edu.puc.mecolab.spinlocks.Account;
 
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Lock queueing algorithm similar to {@link QueueLockBankAccount}, implemented through a linked list, in which the
  * tail of the queue is globally visible through a shared variable and each thread maintains a reference to its
  * previous member's flag in the queue (its predecessor). If the flag is set to true, the lock is being held.
  * Successors then spin on the flag until it is set to false through unlocking.
+ *
+ * Optionally, threads may spin only for an adaptive amount of iterations (see {@link SpinBudget}) and then park until
+ * their predecessor unparks them. This prevents a whole queue of threads from burning CPU time while the thread that
+ * should be next is descheduled, which happens all the time when there are more threads than cores.
+ *
+ * Threads may also give up waiting through {@link CLHLockBankAccount#tryLock(long, TimeUnit)}. A thread that gives up
+ * leaves its node in the queue pointing to the node it was waiting for, so its successor waits for that one instead
+ * (as in {@link TimeoutLockBankAccount}). Such a node is never reused, the thread gets a new one.
+ *
+ * A thread's nodes are kept in a {@link Handle}. Callers may own their handles (see
+ * {@link CLHLockBankAccount#newHandle()}) and pass them along, otherwise one is looked up per operation.
  */
 public class CLHLockBankAccount extends Account {
     private static final int CAPACITY = 20;
@@ -16,53 +29,217 @@ public class CLHLockBankAccount extends Account {
     private int mAmount;
 
     private AtomicReference<Status> mTail;
-    private ThreadLocal<Status> mMyLockStatus;
-    private ThreadLocal<Status> mPredecessorLockStatus;
+    private ThreadLocal<Handle> mHandle;
+
+    private final SpinPolicy mSpinPolicy;
+    private final boolean mSpinThenPark;
+    private final SpinBudget mSpinBudget;
 
     public CLHLockBankAccount(int amount) {
+        this(amount, false);
+    }
+
+    /**
+     * @param amount The initial amount.
+     * @param spinThenPark Whether waiting threads should park after spinning for a while.
+     */
+    public CLHLockBankAccount(int amount, boolean spinThenPark) {
+        this(amount, spinThenPark, SpinPolicy.BUSY);
+    }
+
+    /**
+     * @param amount The initial amount.
+     * @param spinPolicy What waiting threads do each time they find their predecessor still locked.
+     */
+    public CLHLockBankAccount(int amount, SpinPolicy spinPolicy) {
+        this(amount, false, spinPolicy);
+    }
+
+    /**
+     * @param amount The initial amount.
+     * @param spinThenPark Whether waiting threads should park after spinning for a while.
+     * @param spinPolicy What waiting threads do each time they find their predecessor still locked (while spinning).
+     */
+    public CLHLockBankAccount(int amount, boolean spinThenPark, SpinPolicy spinPolicy) {
         mAmount = amount;
 
         mTail = new AtomicReference<>(new Status());
 
-        mMyLockStatus = ThreadLocal.withInitial(Status::new);
+        mHandle = ThreadLocal.withInitial(Handle::new);
 
-        mPredecessorLockStatus = new ThreadLocal<>(); // Value initialized to null
+        mSpinPolicy = spinPolicy;
+        mSpinThenPark = spinThenPark;
+        mSpinBudget = new SpinBudget();
     }
 
     public void deposit(int amount) {
-        lock();
-        mAmount += amount;
-        unlock();
+        deposit(mHandle.get(), amount);
     }
 
     public void withdraw(int amount) {
-        lock();
+        withdraw(mHandle.get(), amount);
+    }
+
+    public void deposit(Handle handle, int amount) {
+        lock(handle);
+        mAmount += amount;
+        unlock(handle);
+    }
+
+    public void withdraw(Handle handle, int amount) {
+        lock(handle);
         mAmount -= amount;
-        unlock();
+        unlock(handle);
     }
 
     public int getAmount() {
         return mAmount;
     }
 
-    private void lock() {
-        Status status = mMyLockStatus.get();
+    /**
+     * Attempts to acquire the lock, giving up once the timeout has elapsed.
+     *
+     * @return true if the lock was successfully acquired, false otherwise.
+     */
+    public boolean tryLock(long time, TimeUnit unit) {
+        return tryLock(mHandle.get(), time, unit);
+    }
+
+    /**
+     * Same as {@link CLHLockBankAccount#tryLock(long, TimeUnit)}, with a handle owned by the caller.
+     */
+    public boolean tryLock(Handle handle, long time, TimeUnit unit) {
+        long deadline = System.nanoTime() + unit.toNanos(time);
+
+        Status status = handle.mStatus;
         status.mLocked = true;
 
-        Status predecessor = mTail.getAndSet(status);
-        mPredecessorLockStatus.set(predecessor);
-        while (predecessor.mLocked) {}
+        Status predecessor = await(mTail.getAndSet(status), true, deadline);
+        // The predecessor may have unlocked right after we gave up, in which case we hold the lock anyway.
+        if (!predecessor.mLocked) {
+            handle.mPredecessor = predecessor;
+            return true;
+        }
+
+        // If no one is behind us, we can just leave the queue and keep our node. Otherwise, our successor is told who to
+        // wait for instead of us (and woken up in case it is parked), and our node is left to it.
+        if (!mTail.compareAndSet(status, predecessor)) {
+            status.mPredecessor = predecessor;
+            Thread waiter = status.mWaiter;
+            if (waiter != null) LockSupport.unpark(waiter);
+            handle.mStatus = new Status();
+        }
+
+        return false;
     }
 
-    private void unlock() {
-        Status status = mMyLockStatus.get();
+    /**
+     * Releases the lock.
+     */
+    public void unlock() {
+        unlock(mHandle.get());
+    }
+
+    /**
+     * Acquires the lock with a handle owned by the caller, which must be passed to
+     * {@link CLHLockBankAccount#unlock(Handle)} as well.
+     */
+    public void lock(Handle handle) {
+        Status status = handle.mStatus;
+        status.mLocked = true;
+
+        handle.mPredecessor = await(mTail.getAndSet(status), false, 0);
+    }
+
+    /**
+     * Releases the lock acquired with the given handle.
+     */
+    public void unlock(Handle handle) {
+        Status status = handle.mStatus;
+        // Our predecessor's node is no longer used by anyone, it becomes ours for the next lock.
+        handle.mStatus = handle.mPredecessor;
         status.mLocked = false;
 
-        mMyLockStatus.set(mPredecessorLockStatus.get());
+        if (mSpinThenPark) {
+            Thread waiter = status.mWaiter;
+            if (waiter != null) LockSupport.unpark(waiter);
+        }
+    }
+
+    /**
+     * @return A new handle, to be used by a single thread at a time (with this or any other lock of this class).
+     */
+    public Handle newHandle() {
+        return new Handle();
+    }
+
+    /**
+     * Waits for the predecessor to unlock, skipping predecessors that gave up.
+     *
+     * @param timed Whether to give up once the deadline is reached.
+     * @return The predecessor, which is unlocked unless the deadline was reached.
+     */
+    private Status await(Status predecessor, boolean timed, long deadline) {
+        int spins = 0;
+        int budget = mSpinThenPark ? mSpinBudget.get() : 0;
+
+        while (predecessor.mLocked) {
+            Status abandoned = predecessor.mPredecessor;
+            if (abandoned != null) {
+                predecessor = abandoned;
+                continue;
+            }
+
+            if (timed && System.nanoTime() - deadline >= 0) return predecessor;
+            if (mSpinThenPark && spins >= budget) {
+                park(predecessor, timed, deadline);
+            } else {
+                mSpinPolicy.spin(spins);
+            }
+            spins++;
+        }
+
+        if (mSpinThenPark) {
+            if (spins > budget) {
+                mSpinBudget.spinFailed();
+            } else {
+                mSpinBudget.spinSucceeded();
+            }
+        }
+        return predecessor;
+    }
+
+    private void park(Status predecessor, boolean timed, long deadline) {
+        // We must publish ourselves BEFORE checking the flag once more, otherwise our predecessor could unlock (or give
+        // up) in between without noticing us and we would never be unparked. Spurious wake-ups are simply ignored.
+        predecessor.mWaiter = Thread.currentThread();
+        if (predecessor.mLocked && predecessor.mPredecessor == null) {
+            if (timed) {
+                LockSupport.parkNanos(this, deadline - System.nanoTime());
+            } else {
+                LockSupport.park(this);
+            }
+        }
+        predecessor.mWaiter = null;
+    }
+
+    /**
+     * A thread's context for the lock: the node it enqueues when locking and the node it waited for, which it takes
+     * over when unlocking. A handle must not be used for two locks at the same time.
+     */
+    public static final class Handle {
+        private Status mStatus = new Status();
+        private Status mPredecessor;
+
+        private Handle() {}
     }
 
     private static class Status {
         // Shared variable between at most 2 threads used for spinning. Must be declared volatile.
         private volatile boolean mLocked;
+        // Successor parked waiting for this status to be unlocked, if any.
+        private volatile Thread mWaiter;
+        // Set when the owner gave up waiting: the status it was waiting for, its successor must wait for it instead.
+        private volatile Status mPredecessor;
     }
 }
@@ -0,0 +1,52 @@
+package edu.puc.mecolab.spinlocks.concurrent;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+
+/**
+ * Size of a cache line, used to pad shared variables so that no two of them ever share one. It is taken from the
+ * {@value CacheLine#PROPERTY} system property if set (e.g. 128 on machines whose prefetcher fetches lines in pairs),
+ * otherwise it is read from the operating system (Linux only), falling back to 64 bytes, the most common size.
+ */
+public final class CacheLine {
+    public static final String PROPERTY = "edu.puc.mecolab.cacheLineSize";
+
+    private static final String SYSTEM_FILE = "/sys/devices/system/cpu/cpu0/cache/index0/coherency_line_size";
+    private static final int DEFAULT_SIZE = 64;
+
+    /**
+     * In bytes.
+     */
+    public static final int SIZE = readSize();
+
+    /**
+     * Number of ints and longs in a cache line.
+     */
+    public static final int INTS = SIZE / Integer.BYTES;
+    public static final int LONGS = SIZE / Long.BYTES;
+
+    private CacheLine() {}
+
+    private static int readSize() {
+        Integer size = Integer.getInteger(PROPERTY);
+        if (size != null && isValid(size)) return size;
+
+        try {
+            List<String> lines = Files.readAllLines(Paths.get(SYSTEM_FILE));
+            if (!lines.isEmpty()) {
+                size = Integer.parseInt(lines.get(0).trim());
+                if (isValid(size)) return size;
+            }
+        } catch (IOException | RuntimeException e) {
+            // Not available on this system, use the default.
+        }
+
+        return DEFAULT_SIZE;
+    }
+
+    private static boolean isValid(int size) {
+        return size >= Long.BYTES && Integer.bitCount(size) == 1;
+    }
+}
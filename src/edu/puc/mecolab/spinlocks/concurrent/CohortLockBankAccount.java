@@ -0,0 +1,233 @@
+package edu.puc.mecolab.spinlocks.concurrent;
+
+import edu.puc.mecolab.spinlocks.Account;
+import edu.puc.mecolab.spinlocks.locks.BackoffLock;
+import edu.puc.mecolab.spinlocks.locks.CLHLock;
+
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.ToIntFunction;
+
+/**
+ * A hierarchical (NUMA-aware) lock built out of two of the previous algorithms. Threads are split in clusters (e.g.
+ * one per socket); each cluster has its own local {@link CLHLockBankAccount CLH} queue, and all clusters compete for a
+ * single global {@link BackoffLockBankAccount TTAS with backoff} lock.
+ *
+ * The global lock is a {@link BackoffLock}. The local queues, however, are a copy of the CLH algorithm rather than
+ * {@link CLHLock CLHLocks}: a node must tell its successor whether the global lock is passed along with the local one,
+ * and the holder must find out whether a thread of its cluster is queued behind it, neither of which a Lock offers.
+ *
+ * A thread first acquires its cluster's local lock. If it received the lock from a predecessor of its own cluster, the
+ * global lock is inherited along with it; otherwise, it has to acquire the global lock too. When unlocking, if some
+ * other thread of the same cluster is already queued, the global lock is passed along locally without ever being
+ * released, keeping the protected data in that cluster's caches. To prevent starvation of other clusters, at most
+ * {@link CohortLockBankAccount#MAX_LOCAL_HANDOFFS} consecutive local handoffs are allowed before the global lock is
+ * released anyway.
+ *
+ * Java offers no way to find out the socket a thread is running on, so the thread to cluster mapping must be supplied
+ * (e.g. matching the way threads are pinned through the OS). By default, threads are spread by their id.
+ *
+ * A thread's cluster and nodes are kept in a {@link Handle}. Callers may own their handles (see
+ * {@link CohortLockBankAccount#newHandle()}) and pass them along, otherwise one is looked up per operation.
+ */
+public class CohortLockBankAccount extends Account {
+    private static final int DEFAULT_CLUSTERS = 2;
+    private static final int MAX_LOCAL_HANDOFFS = 64;
+
+    private int mAmount;
+
+    private final int mClusters;
+    private final ToIntFunction<Thread> mClusterMapper;
+
+    /**
+     * Global lock, shared by all clusters. Note it must be thread-oblivious: it may be acquired by one thread and
+     * released by another one of the same cluster, which BackoffLock allows as it does not keep track of its owner.
+     */
+    private BackoffLock mGlobalLock;
+
+    /**
+     * Tails of each of the cluster's local CLH queues.
+     */
+    private AtomicReference<QNode>[] mLocalTails;
+
+    private ThreadLocal<Handle> mHandle;
+
+    private final SpinPolicy mSpinPolicy;
+
+    // The following variables are only accessed by the lock holder, no further synchronization is needed.
+    private int mLocalHandoffCount;
+    private int mLastCluster = -1;
+
+    private long mLocalHandoffs;
+    private long mGlobalAcquisitions;
+    private long mSameClusterGlobalAcquisitions;
+
+    public CohortLockBankAccount(int amount) {
+        this(amount, DEFAULT_CLUSTERS, thread -> (int) thread.getId());
+    }
+
+    /**
+     * @param amount The initial amount.
+     * @param clusters The number of clusters threads are split in.
+     * @param clusterMapper Maps each thread to its cluster. Results are taken modulo clusters.
+     */
+    public CohortLockBankAccount(int amount, int clusters, ToIntFunction<Thread> clusterMapper) {
+        this(amount, clusters, clusterMapper, SpinPolicy.BUSY, new BackoffLock());
+    }
+
+    /**
+     * @param amount The initial amount.
+     * @param clusters The number of clusters threads are split in.
+     * @param clusterMapper Maps each thread to its cluster. Results are taken modulo clusters.
+     * @param spinPolicy What waiting threads do each time they find their local predecessor, or the global lock, busy.
+     * The global lock uses it instead of its default backoff.
+     */
+    public CohortLockBankAccount(int amount, int clusters, ToIntFunction<Thread> clusterMapper,
+                                 SpinPolicy spinPolicy) {
+        this(amount, clusters, clusterMapper, spinPolicy, new BackoffLock(spinPolicy));
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private CohortLockBankAccount(int amount, int clusters, ToIntFunction<Thread> clusterMapper,
+                                  SpinPolicy spinPolicy, BackoffLock globalLock) {
+        if (clusters < 1) throw new IllegalArgumentException("At least one cluster is required");
+
+        mAmount = amount;
+        mClusters = clusters;
+        mClusterMapper = clusterMapper;
+        mSpinPolicy = spinPolicy;
+
+        mGlobalLock = globalLock;
+
+        mLocalTails = new AtomicReference[clusters];
+        for (int i = 0; i < clusters; i++) {
+            QNode sentinel = new QNode();
+            sentinel.mState = QNode.RELEASED_GLOBAL;
+            mLocalTails[i] = new AtomicReference<>(sentinel);
+        }
+
+        mHandle = ThreadLocal.withInitial(this::newHandle);
+    }
+
+    public void deposit(int amount) {
+        deposit(mHandle.get(), amount);
+    }
+
+    public void withdraw(int amount) {
+        withdraw(mHandle.get(), amount);
+    }
+
+    public void deposit(Handle handle, int amount) {
+        lock(handle);
+        mAmount += amount;
+        unlock(handle);
+    }
+
+    public void withdraw(Handle handle, int amount) {
+        lock(handle);
+        mAmount -= amount;
+        unlock(handle);
+    }
+
+    public int getAmount() {
+        return mAmount;
+    }
+
+    @Override
+    public String getStatistics() {
+        long total = mLocalHandoffs + mGlobalAcquisitions;
+        double locality = total == 0 ? 0 : 100.0 * (mLocalHandoffs + mSameClusterGlobalAcquisitions) / total;
+        return "Local handoffs: " + mLocalHandoffs + ", global acquisitions: " + mGlobalAcquisitions
+                + " (" + mSameClusterGlobalAcquisitions + " by the same cluster)"
+                + String.format(", handoff locality: %.2f%%", locality);
+    }
+
+    /**
+     * Acquires the lock with a handle owned by the caller, which must be passed to
+     * {@link CohortLockBankAccount#unlock(Handle)} as well.
+     */
+    public void lock(Handle state) {
+        QNode node = state.mMyNode;
+        node.mState = QNode.WAITING;
+
+        QNode predecessor = mLocalTails[state.mCluster].getAndSet(node);
+        state.mPredecessor = predecessor;
+
+        int predecessorState;
+        for (int attempt = 0; (predecessorState = predecessor.mState) == QNode.WAITING; attempt++) {
+            mSpinPolicy.spin(attempt);
+        }
+
+        if (predecessorState == QNode.RELEASED_LOCAL) {
+            // The global lock has been passed along by a thread of our own cluster.
+            mLocalHandoffs++;
+            return;
+        }
+
+        // Only one thread per cluster may compete for the global lock at any time, so contention here is low.
+        mGlobalLock.lock();
+        mLocalHandoffCount = 0;
+        mGlobalAcquisitions++;
+        if (mLastCluster == state.mCluster) mSameClusterGlobalAcquisitions++;
+        mLastCluster = state.mCluster;
+    }
+
+    /**
+     * Releases the lock acquired with the given handle.
+     */
+    public void unlock(Handle state) {
+        QNode node = state.mMyNode;
+
+        // If we are no longer the tail of our local queue, a thread of our cluster is waiting right behind us.
+        boolean cohortWaiting = mLocalTails[state.mCluster].get() != node;
+        if (cohortWaiting && mLocalHandoffCount < MAX_LOCAL_HANDOFFS) {
+            mLocalHandoffCount++;
+            node.mState = QNode.RELEASED_LOCAL;
+        } else {
+            mGlobalLock.unlock();
+            node.mState = QNode.RELEASED_GLOBAL;
+        }
+
+        // Same as in CLH, we take over our predecessor's node, which no one else will use anymore.
+        state.mMyNode = state.mPredecessor;
+    }
+
+    /**
+     * @return A new handle for the calling thread, mapped to its cluster. It may only be used with this lock, by a
+     * single thread at a time.
+     */
+    public Handle newHandle() {
+        return new Handle(Math.floorMod(mClusterMapper.applyAsInt(Thread.currentThread()), mClusters));
+    }
+
+    /**
+     * A thread's context for the lock: its cluster, the node it enqueues when locking and the node it waited for, which
+     * it takes over when unlocking.
+     */
+    public static final class Handle {
+        private final int mCluster;
+        private QNode mMyNode = new QNode();
+        private QNode mPredecessor;
+
+        private Handle(int cluster) {
+            mCluster = cluster;
+        }
+    }
+
+    private static class QNode {
+        /**
+         * Owner is waiting for, or holding, the lock.
+         */
+        private static final int WAITING = 0;
+        /**
+         * Owner released its local lock, but kept the global lock for its successor.
+         */
+        private static final int RELEASED_LOCAL = 1;
+        /**
+         * Owner released both locks, its successor must acquire the global lock by itself.
+         */
+        private static final int RELEASED_GLOBAL = 2;
+
+        // Shared variable between at most 2 threads used for spinning. Must be declared volatile.
+        private volatile int mState;
+    }
+}
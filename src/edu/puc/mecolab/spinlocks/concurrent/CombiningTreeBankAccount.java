@@ -0,0 +1,312 @@
+package edu.puc.mecolab.spinlocks.concurrent;
+
+import edu.puc.mecolab.spinlocks.Account;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Software combining tree: instead of all threads updating the balance, threads climb a binary tree, combining their
+ * amounts with the threads they meet along the way. Only one thread makes it to the root, where it applies the combined
+ * amount of all of them at once. The result is then distributed back down the tree, so that every thread finds out the
+ * balance right after its own operation, exactly as if operations had been performed one at a time. Any thread may
+ * end up performing the update, and each node is only contended by two threads, so contention on any single memory
+ * location goes down from N threads to 2.
+ *
+ * Each leaf is shared by two threads, so a tree of width W supports up to W threads at the same time: the place of a
+ * thread that has died is taken over by the next thread that needs one. Synchronization within each node
+ * is done through monitors (see {@link MonitorBankAccount}). Going through the tree takes a lot longer than an
+ * uncontended lock, this only pays off when there are many threads hammering the balance.
+ *
+ * @see <a href=https://www.elsevier.com/books/the-art-of-multiprocessor-programming/herlihy/978-0-12-415950-1>The Art of
+ * Multiprocessor Programming, chapter 12</a>
+ */
+public class CombiningTreeBankAccount extends Account {
+    private static final int DEFAULT_WIDTH = 64;
+
+    private final int mWidth;
+
+    private Node mRoot;
+    private Node[] mLeaves;
+
+    /**
+     * Number of places ever taken (may go past mWidth when threads find no free place).
+     */
+    private AtomicInteger mThreads;
+    /**
+     * The thread each place belongs to, two places per leaf.
+     */
+    private AtomicReferenceArray<Thread> mOwners;
+    private ThreadLocal<ThreadState> mThreadState;
+
+    public CombiningTreeBankAccount(int amount) {
+        this(amount, DEFAULT_WIDTH);
+    }
+
+    /**
+     * @param amount The initial amount.
+     * @param width The width of the tree, which is the maximum number of threads using the account at the same time.
+     * Must be a power of 2.
+     */
+    public CombiningTreeBankAccount(int amount, int width) {
+        if (width < 2 || Integer.bitCount(width) != 1) throw new IllegalArgumentException("Width must be a power of 2");
+
+        mWidth = width;
+
+        // Tree laid out as a binary heap: the parent of node i is node (i - 1) / 2, the last width / 2 nodes are leaves.
+        Node[] nodes = new Node[width - 1];
+        nodes[0] = new Node(null);
+        nodes[0].mStatus = Node.ROOT;
+        nodes[0].mResult = amount;
+        for (int i = 1; i < nodes.length; i++) {
+            nodes[i] = new Node(nodes[(i - 1) / 2]);
+        }
+
+        mRoot = nodes[0];
+        mLeaves = new Node[width / 2];
+        System.arraycopy(nodes, nodes.length - mLeaves.length, mLeaves, 0, mLeaves.length);
+
+        mThreads = new AtomicInteger(0);
+        mOwners = new AtomicReferenceArray<>(width);
+        mThreadState = ThreadLocal.withInitial(this::register);
+    }
+
+    public void deposit(int amount) {
+        getAndAdd(amount);
+    }
+
+    public void withdraw(int amount) {
+        getAndAdd(- amount);
+    }
+
+    public int getAmount() {
+        synchronized (mRoot) {
+            return mRoot.mResult;
+        }
+    }
+
+    /**
+     * @return The balance right after this deposit, as if deposits and withdrawals were performed one at a time.
+     */
+    public int depositAndGet(int amount) {
+        return getAndAdd(amount) + amount;
+    }
+
+    /**
+     * @return The balance right after this withdrawal, as if deposits and withdrawals were performed one at a time.
+     */
+    public int withdrawAndGet(int amount) {
+        return getAndAdd(- amount) - amount;
+    }
+
+    private int getAndAdd(int delta) {
+        ThreadState state = mThreadState.get();
+        Node leaf = state.mLeaf;
+        Node[] path = state.mPath;
+
+        // Precombining: climb up while we are the first thread to reach each node, marking it so the second thread to
+        // get there waits for us. We stop at the first node where someone else got first (or at the root).
+        Node node = leaf;
+        while (node.precombine()) {
+            node = node.mParent;
+        }
+        Node stop = node;
+
+        // Combining: climb up again, collecting the amounts of the threads that stopped at each of our nodes.
+        int depth = 0;
+        int combined = delta;
+        node = leaf;
+        while (node != stop) {
+            combined = node.combine(combined);
+            path[depth++] = node;
+            node = node.mParent;
+        }
+
+        // Operation: either apply the combined amount to the balance (at the root), or hand it to the thread that got
+        // first to our stop node and wait for it to bring back the result.
+        int prior = stop.op(combined);
+
+        // Distribution: go back down, handing the results to the threads that combined with us.
+        while (depth > 0) {
+            path[--depth].distribute(prior);
+        }
+
+        return prior;
+    }
+
+    /**
+     * Takes a place in the tree for the calling thread, a new one or one left by a thread that has died.
+     */
+    private ThreadState register() {
+        Thread me = Thread.currentThread();
+        int index = mThreads.getAndIncrement();
+        if (index < mWidth) {
+            mOwners.set(index, me);
+            return new ThreadState(mLeaves[index / 2], Integer.numberOfTrailingZeros(mWidth));
+        }
+
+        for (int i = 0; i < mWidth; i++) {
+            Thread owner = mOwners.get(i);
+            // A dead thread finished its last operation, so it left all nodes on its path idle (or to its partner).
+            if (owner != null && !owner.isAlive() && mOwners.compareAndSet(i, owner, me)) {
+                return new ThreadState(mLeaves[i / 2], Integer.numberOfTrailingZeros(mWidth));
+            }
+        }
+        throw new IllegalStateException("Too many live threads for this account: " + mWidth);
+    }
+
+    private static class ThreadState {
+        private final Node mLeaf;
+        // Nodes visited while combining, reused across operations.
+        private final Node[] mPath;
+
+        private ThreadState(Node leaf, int height) {
+            mLeaf = leaf;
+            mPath = new Node[height];
+        }
+    }
+
+    // Nodes are padded so that two nodes never share a cache line. Padding is done through inheritance, the only way to
+    // be sure the JVM keeps the padding fields before and after the node's own fields.
+
+    private static class LeftPadding {
+        protected long p01, p02, p03, p04, p05, p06, p07;
+    }
+
+    private static class NodeFields extends LeftPadding {
+        /**
+         * No thread has reached the node.
+         */
+        protected static final int IDLE = 0;
+        /**
+         * One thread has reached the node, and will be the one to go up.
+         */
+        protected static final int FIRST = 1;
+        /**
+         * A second thread has reached the node, and will wait at the node for the first one.
+         */
+        protected static final int SECOND = 2;
+        /**
+         * The first thread has brought back the result for the second one.
+         */
+        protected static final int RESULT = 3;
+        /**
+         * The root node, the combined amount is applied here.
+         */
+        protected static final int ROOT = 4;
+
+        // All fields are only accessed while holding the node's monitor.
+        protected boolean mLocked;
+        protected int mStatus;
+        protected int mFirstValue;
+        protected int mSecondValue;
+        protected int mResult;
+    }
+
+    private static class Node extends NodeFields {
+        protected long p11, p12, p13, p14, p15, p16, p17;
+
+        private final Node mParent;
+
+        private Node(Node parent) {
+            mParent = parent;
+            mStatus = IDLE;
+        }
+
+        /**
+         * @return true if the caller is the first thread to reach this node, and must therefore keep climbing.
+         */
+        private synchronized boolean precombine() {
+            awaitUnlocked();
+            switch (mStatus) {
+                case IDLE:
+                    mStatus = FIRST;
+                    return true;
+                case FIRST:
+                    // Keep the first thread from combining at this node until we have left our amount.
+                    mLocked = true;
+                    mStatus = SECOND;
+                    return false;
+                case ROOT:
+                    return false;
+                default:
+                    throw new IllegalStateException("Unexpected node status: " + mStatus);
+            }
+        }
+
+        /**
+         * @return The caller's amount combined with the second thread's amount (if any).
+         */
+        private synchronized int combine(int combined) {
+            awaitUnlocked();
+            // Keep any other thread away until we are back with the results.
+            mLocked = true;
+            mFirstValue = combined;
+            switch (mStatus) {
+                case FIRST:
+                    return mFirstValue;
+                case SECOND:
+                    return mFirstValue + mSecondValue;
+                default:
+                    throw new IllegalStateException("Unexpected node status: " + mStatus);
+            }
+        }
+
+        /**
+         * @return The balance right before the combined amount was applied.
+         */
+        private synchronized int op(int combined) {
+            switch (mStatus) {
+                case ROOT:
+                    int prior = mResult;
+                    mResult += combined;
+                    return prior;
+                case SECOND:
+                    mSecondValue = combined;
+                    mLocked = false;
+                    notifyAll();
+                    while (mStatus != RESULT) {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            e.printStackTrace();
+                        }
+                    }
+                    mLocked = false;
+                    notifyAll();
+                    mStatus = IDLE;
+                    return mResult;
+                default:
+                    throw new IllegalStateException("Unexpected node status: " + mStatus);
+            }
+        }
+
+        private synchronized void distribute(int prior) {
+            switch (mStatus) {
+                case FIRST:
+                    // Nobody combined with us here.
+                    mStatus = IDLE;
+                    mLocked = false;
+                    break;
+                case SECOND:
+                    // Operations of the first thread were applied before those of the second one.
+                    mResult = prior + mFirstValue;
+                    mStatus = RESULT;
+                    break;
+                default:
+                    throw new IllegalStateException("Unexpected node status: " + mStatus);
+            }
+            notifyAll();
+        }
+
+        private void awaitUnlocked() {
+            while (mLocked) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+}
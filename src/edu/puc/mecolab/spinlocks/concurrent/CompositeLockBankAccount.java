@@ -2,99 +2,228 @@ package edu.puc.mecolab.spinlocks.concurrent;
 
 import edu.puc.mecolab.spinlocks.Account;
 
-import java.util.Random;
-import java.util.concurrent.TimeoutException;
-import java.util.concurrent.atomic.AtomicReference;
-import java.util.concurrent.atomic.AtomicStampedReference;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * A merger of the concepts introduced in the queuing and timeout algorithm implementations. The composite lock
  * consists of a virtual queue of at most {@link CompositeLockBankAccount#SIZE} nodes that are allowed to spin
  * to retrieve the lock, all other threads attempting to get the lock are subject to exponential backoff. If too many
- * back-offs have occurred (over {@link CompositeLockBankAccount#THRESHOLD} in waiting time), the offending thread is put
- * to sleep for {@link CompositeLockBankAccount#SLEEP}.
+ * back-offs have occurred (over {@link CompositeLockBankAccount#THRESHOLD} in waiting time), the offending thread parks
+ * until the lock is released (for at most {@link CompositeLockBankAccount#THRESHOLD} as well) and tries again.
  *
- * In order to acquire the lock, a thread has to first acquire a {@link QNode}. At that point, it enters the queue and
+ * In order to acquire the lock, a thread has to first acquire a node. At that point, it enters the queue and
  * starts spinning, but DOES NOT have the lock yet. Then, it has to wait until the Node reaches the head of the queue.
  * Only then can the lock be considered to be 'acquired'.
  *
- * The virtual queue is represented by the mTail object, a local reference of each thread pointing to the last object
- * of the queue.
+ * The virtual queue is represented by mTail, which holds the index of the last node of the queue.
+ *
+ * Acquiring and releasing the lock does not allocate any objects: nodes are identified by their index, their state is
+ * kept in a padded int array, the tail and its stamp are packed in a single long, and the held node is kept in a field
+ * only the lock holder accesses.
+ *
+ * All of these parameters may be set per instance. In adaptive mode, they are only the starting point: the lock holder
+ * keeps track of how long critical sections take and how often threads have to back off because no node was free, and
+ * every {@link CompositeLockBankAccount#WINDOW} acquisitions it grows or shrinks the number of nodes in use and sets the
+ * backoff bounds so that a backing off thread retries about when the lock may have changed hands.
  */
 public class CompositeLockBankAccount extends Account {
-    private static final int THRESHOLD = 500;
-    private static final int SLEEP = 1000;
-
+    // Default parameters. All times are in nanoseconds. They used to be milliseconds (a 500 ms threshold followed by
+    // a 1 s sleep, and 10 to 100 ms of sleep per backoff), which suited Thread.sleep() but not a busy backoff: a thread
+    // now backs off for about as long as a few critical sections take, and parks until the lock is released after
+    // 500 us.
+    private static final long THRESHOLD = 500000;
     private static final int SIZE = 4;
-    private static final int MIN_BACKOFF = 10;
-    private static final int MAX_BACKOFF = 100;
+    private static final long MIN_BACKOFF = 1000;
+    private static final long MAX_BACKOFF = 10000;
 
-    private int mAmount;
+    /**
+     * Number of threads that may be parked at the same time waiting for the lock to be released. Threads that find no
+     * free slot just park until their timeout.
+     */
+    private static final int PARKING_SLOTS = 8;
 
     /**
-     * The reference to the last object of the waiting threads' virtual queue. Implemented as an {@link AtomicStampedReference}
-     * in order to avoid the ABA problem.
+     * Distance between two nodes in the shared array. Each node's predecessor is kept in the same line as its state.
+     */
+    private static final int STEP = CacheLine.INTS;
+    private static final int PREDECESSOR = 1;
+
+    /**
+     * Node's initial state, free for acquiring. A node may be set to FREE back from WAITING only if it is the
+     * tail of the queue. A node may be set FREE from ABORTED once proper cleanup has been performed. A node
+     * may be set FREE from RELEASED once its predecessor has acquired the lock.
+     */
+    private static final int FREE = 0;
+    /**
+     * Node that has been acquired, the thread that acquired it is currently spinning to wait for the lock.
+     */
+    private static final int WAITING = 1;
+    /**
+     * Node whose thread has just quit its critical section. It is now free for acquiring by the previous node
+     * in the queue. If no other node is in the queue, should be marked as FREE.
+     */
+    private static final int RELEASED = 2;
+    /**
+     * Enqueued node in which its timeout has transpired. Successor's predecessor in the queue should be updated
+     * to this node's predecessor to maintain consistency. After cleanup, should be marked as FREE.
      */
-    protected AtomicStampedReference<QNode> mTail;
+    private static final int ABORTED = 3;
+
+    /**
+     * Index standing for no node at all (an empty queue, or no predecessor).
+     */
+    protected static final int NONE = -1;
+    private static final int TIMED_OUT = -2;
+
+    /**
+     * Bits of the stamp used as a counter, the rest are flags which are preserved when the stamp is incremented.
+     */
+    private static final int STAMP_COUNTER = (1 << 30) - 1;
+
+    // Adaptive mode parameters.
+    private static final int WINDOW = 256;
+    private static final int HOLD_TIME_SAMPLING = 16;
+    private static final long MIN_BACKOFF_FLOOR = 100;
+    /**
+     * Back-offs per acquisition over which another node is put to use.
+     */
+    private static final double GROW_BACKOFFS = 1.0;
+    /**
+     * Consecutive windows without any back-off after which a node is taken out of use.
+     */
+    private static final int SHRINK_WINDOWS = 8;
+
+    private int mAmount;
+
+    private final long mThreshold;
+    private final boolean mAdaptive;
 
     /**
-     * A list of shared Node objects that allow access to the queue. A thread trying to get the lock gets assigned a
-     * node at random. If it is free, it enters the queue, otherwise, it back-offs. QNode's state is handled by an
-     * atomic reference, therefore volatile is not needed here.
+     * What a queued thread does each time it finds its predecessor not released yet.
      */
-    private QNode[] mWaiting;
+    protected final SpinPolicy mSpinPolicy;
+
+    // Updated by the lock holder in adaptive mode, read by everyone.
+    private volatile int mActiveNodes;
+    private volatile long mMinBackoff;
+    private volatile long mMaxBackoff;
+
+    private AtomicReferenceArray<Thread> mParked;
+    private AtomicInteger mParkedCount;
+
+    private AtomicInteger mBackoffs;
+    private AtomicInteger mTimeouts;
+
+    // Only accessed by the lock holder.
+    private int mWindowAcquisitions;
+    private long mWindowHoldNanos;
+    private int mWindowHoldSamples;
+    private long mHoldStart;
+    private int mQuietWindows;
 
     /**
-     * Random object used to retrieve a random node in the node list.
+     * The last node of the waiting threads' virtual queue, along with a stamp in order to avoid the ABA problem. The
+     * stamp takes the upper half (see {@link CompositeLockBankAccount#tail(int, int)}).
      */
-    private Random mRandom;
+    protected AtomicLong mTail;
 
     /**
-     * The currently assigned Node (if any). Once assigned, it means this thread is either waiting for the lock through
-     * spinning, or it has control of the lock and is currently accessing its critical section.
+     * The shared nodes that allow access to the queue. A thread trying to get the lock gets assigned a node at random.
+     * If it is free, it enters the queue, otherwise, it back-offs. Node i's state is at (i + 1) * STEP, and its
+     * predecessor (when aborted) right after it.
      */
-    protected ThreadLocal<QNode> mStatus;
+    private AtomicIntegerArray mNodes;
+    private final int mSize;
 
     /**
-     * Local {@link Backoff} used for this implementation. Simply a minor optimization technique.
+     * The node of the thread currently holding the lock. Only accessed by the lock holder.
      */
-    private ThreadLocal<Backoff> mBackoff;
+    private int mHeldNode;
 
     public CompositeLockBankAccount(int amount) {
-        mAmount = amount;
+        this(amount, false);
+    }
 
-        mTail = new AtomicStampedReference<>(null, 0);
-        mWaiting = new QNode[SIZE];
-        for (int i = 0; i < mWaiting.length; i++) {
-            mWaiting[i] = new QNode();
-        }
-        mRandom = new Random();
-        mBackoff = ThreadLocal.withInitial(Backoff::new);
-        mStatus = ThreadLocal.withInitial(() -> null);
+    /**
+     * @param amount The initial amount.
+     * @param adaptive Whether parameters are tuned at runtime. In adaptive mode, there is a node per processor (but
+     * only {@link CompositeLockBankAccount#SIZE} of them are in use at first).
+     */
+    public CompositeLockBankAccount(int amount, boolean adaptive) {
+        this(amount, adaptive ? Math.max(SIZE, Runtime.getRuntime().availableProcessors()) : SIZE, MIN_BACKOFF,
+                MAX_BACKOFF, THRESHOLD, adaptive);
     }
 
-    public void deposit(int amount) {
-        while (!tryLock(THRESHOLD)) {
-            try {
-                Thread.sleep(SLEEP);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-        }
+    /**
+     * @param amount The initial amount.
+     * @param size The number of nodes. In adaptive mode, the maximum number of nodes in use.
+     * @param minBackoff Initial backoff limit, in nanoseconds.
+     * @param maxBackoff Maximum backoff limit, in nanoseconds.
+     * @param threshold Time a thread may spend trying to acquire the lock before parking, in nanoseconds.
+     * @param adaptive Whether parameters are tuned at runtime.
+     */
+    public CompositeLockBankAccount(int amount, int size, long minBackoff, long maxBackoff, long threshold,
+                                    boolean adaptive) {
+        this(amount, size, minBackoff, maxBackoff, threshold, adaptive, SpinPolicy.BUSY);
+    }
 
+    /**
+     * @param amount The initial amount.
+     * @param spinPolicy What queued threads do each time they find their predecessor not released yet, and what threads
+     * backing off for a node do until their delay is over.
+     */
+    public CompositeLockBankAccount(int amount, SpinPolicy spinPolicy) {
+        this(amount, SIZE, MIN_BACKOFF, MAX_BACKOFF, THRESHOLD, false, spinPolicy);
+    }
+
+    /**
+     * @param amount The initial amount.
+     * @param size The number of nodes. In adaptive mode, the maximum number of nodes in use.
+     * @param minBackoff Initial backoff limit, in nanoseconds.
+     * @param maxBackoff Maximum backoff limit, in nanoseconds.
+     * @param threshold Time a thread may spend trying to acquire the lock before parking, in nanoseconds.
+     * @param adaptive Whether parameters are tuned at runtime.
+     * @param spinPolicy What queued threads do each time they find their predecessor not released yet, and what threads
+     * backing off for a node do until their delay is over. The backoff bounds themselves are set above.
+     */
+    public CompositeLockBankAccount(int amount, int size, long minBackoff, long maxBackoff, long threshold,
+                                    boolean adaptive, SpinPolicy spinPolicy) {
+        if (size < 1) throw new IllegalArgumentException("At least one node is required");
+        if (minBackoff < 1 || maxBackoff < minBackoff) throw new IllegalArgumentException("Invalid backoff bounds");
+        if (threshold < 1) throw new IllegalArgumentException("Invalid threshold");
+
+        mAmount = amount;
+        mThreshold = threshold;
+        mAdaptive = adaptive;
+        mSpinPolicy = spinPolicy;
+        mActiveNodes = adaptive ? Math.min(SIZE, size) : size;
+        mMinBackoff = minBackoff;
+        mMaxBackoff = maxBackoff;
+
+        mTail = new AtomicLong(tail(NONE, 0));
+        mSize = size;
+        // Padding is added at both ends, so that no node shares its line with other objects. All nodes start FREE.
+        mNodes = new AtomicIntegerArray((size + 2) * STEP);
+
+        mParked = new AtomicReferenceArray<>(PARKING_SLOTS);
+        mParkedCount = new AtomicInteger(0);
+        mBackoffs = new AtomicInteger(0);
+        mTimeouts = new AtomicInteger(0);
+    }
+
+    public void deposit(int amount) {
+        lock();
         mAmount += amount;
         unlock();
     }
 
     public void withdraw(int amount) {
-        while (!tryLock(THRESHOLD)) {
-            try {
-                Thread.sleep(SLEEP);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-        }
-
+        lock();
         mAmount -= amount;
         unlock();
     }
@@ -103,26 +232,127 @@ public class CompositeLockBankAccount extends Account {
         return mAmount;
     }
 
+    @Override
+    public String getStatistics() {
+        String statistics = "Timeouts: " + mTimeouts.get();
+        if (!mAdaptive) return statistics;
+        return statistics + ", nodes in use: " + mActiveNodes + "/" + mSize + ", backoff: " + mMinBackoff
+                + "-" + mMaxBackoff + " ns";
+    }
+
+    private void lock() {
+        while (!tryLock(mThreshold)) {
+            mTimeouts.incrementAndGet();
+            awaitRelease();
+        }
+
+        if (mAdaptive && ++mWindowAcquisitions % HOLD_TIME_SAMPLING == 0) mHoldStart = System.nanoTime();
+    }
+
+    private void unlock() {
+        if (mAdaptive) {
+            if (mHoldStart != 0) {
+                mWindowHoldNanos += System.nanoTime() - mHoldStart;
+                mWindowHoldSamples++;
+                mHoldStart = 0;
+            }
+            if (mWindowAcquisitions >= WINDOW) adapt();
+        }
+
+        release();
+        if (mParkedCount.get() != 0) wakeParked();
+    }
+
+    /**
+     * Parks the calling thread until the lock is released, or at most the timeout.
+     */
+    private void awaitRelease() {
+        Thread me = Thread.currentThread();
+        int start = ThreadLocalRandom.current().nextInt(PARKING_SLOTS);
+        int slot = -1;
+        for (int i = 0; i < PARKING_SLOTS && slot < 0; i++) {
+            int candidate = (start + i) % PARKING_SLOTS;
+            if (mParked.get(candidate) == null && mParked.compareAndSet(candidate, null, me)) slot = candidate;
+        }
+        if (slot >= 0) mParkedCount.incrementAndGet();
+
+        // The lock may have been released while we registered, in which case nobody is going to wake us up.
+        if (isLocked()) LockSupport.parkNanos(this, mThreshold);
+
+        // Whoever clears the slot also updates the count.
+        if (slot >= 0 && mParked.compareAndSet(slot, me, null)) mParkedCount.decrementAndGet();
+    }
+
+    /**
+     * Wakes up one of the threads parked after a timeout, if any.
+     */
+    private void wakeParked() {
+        for (int i = 0; i < PARKING_SLOTS; i++) {
+            Thread thread = mParked.get(i);
+            if (thread != null && mParked.compareAndSet(i, thread, null)) {
+                mParkedCount.decrementAndGet();
+                LockSupport.unpark(thread);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Tunes the number of nodes in use and the backoff bounds from the last window of acquisitions. Must be called by
+     * the lock holder.
+     */
+    private void adapt() {
+        double backoffs = (double) mBackoffs.getAndSet(0) / mWindowAcquisitions;
+
+        int active = mActiveNodes;
+        if (backoffs > GROW_BACKOFFS) {
+            mQuietWindows = 0;
+            if (active < mSize) mActiveNodes = active + 1;
+        } else if (backoffs == 0 && ++mQuietWindows >= SHRINK_WINDOWS) {
+            // Nodes taken out of use may still be in the queue, they are recycled as usual but no longer handed out.
+            mQuietWindows = 0;
+            if (active > 1) mActiveNodes = active - 1;
+        }
+
+        if (mWindowHoldSamples > 0) {
+            // Retrying sooner than a critical section takes is pointless, and there is no point in waiting for longer
+            // than it takes for the whole queue to go through the lock.
+            long hold = mWindowHoldNanos / mWindowHoldSamples;
+            long min = Math.min(Math.max(MIN_BACKOFF_FLOOR, hold), mThreshold);
+            mMinBackoff = min;
+            mMaxBackoff = Math.max(2 * min, Math.min(hold * mActiveNodes, mThreshold));
+        }
+
+        mWindowAcquisitions = 0;
+        mWindowHoldNanos = 0;
+        mWindowHoldSamples = 0;
+    }
+
+    /**
+     * @return false if the lock is known to be free. Used to decide whether it is worth to park.
+     */
+    protected boolean isLocked() {
+        int tail = tailNode(mTail.get());
+        return tail != NONE && mNodes.get(state(tail)) != RELEASED;
+    }
+
     /**
      * Attempts to acquire the lock.
      *
-     * @param maxWait The maximum amount of time a thread is allowed to wait before failing with a timeout.
+     * @param maxWait The maximum amount of time a thread is allowed to wait before failing with a timeout, in
+     * nanoseconds.
      * @return true if the lock was successfully acquired, false otherwise.
      */
-    protected boolean tryLock(int maxWait) {
-        long startTime = System.currentTimeMillis();
-
-        Backoff backoff = mBackoff.get();
-        try {
-            QNode node = acquireNode(backoff, startTime, maxWait);
-            QNode predecessor = spliceNode(node, startTime, maxWait);
-            waitForPredecessor(predecessor, node, startTime, maxWait);
-            backoff.reset();
-            return true;
-        } catch(TimeoutException e) {
-            backoff.reset();
-            return false;
-        }
+    protected boolean tryLock(long maxWait) {
+        long startTime = System.nanoTime();
+
+        int node = acquireNode(startTime, maxWait);
+        if (node == TIMED_OUT) return false;
+
+        int predecessor = spliceNode(node, startTime, maxWait);
+        if (predecessor == TIMED_OUT) return false;
+
+        return waitForPredecessor(predecessor, node, startTime, maxWait);
     }
 
     /**
@@ -130,47 +360,54 @@ public class CompositeLockBankAccount extends Account {
      * If it is ABORTED or RELEASED, queue cleanup is performed. In order to avoid synchronization issues, queue cleanup
      * is only allowed to be done by one thread: the last one at the queue. This is arbitrary, another condition could
      * be used to achieve the same result. After the cleanup, a CAS is attempted to obtain the node.
-     * If the node is WAITING or if after the cleanup the CAS fails, the thread backs-off.
+     * If the node is WAITING or if after the cleanup the CAS fails, the thread backs-off (randomized exponential backoff).
      *
-     * @param backoff The backoff object that implements exponential backoff.
      * @param startTime The time this thread started trying to acquire the lock.
      * @param maxWait The maximum amount of time a thread is allowed to backoff before failing with a timeout.
-     * @return A QNode in an 'acquired' state.
-     * @throws TimeoutException If the thread fails to acquire the node before maxWait has elapsed.
+     * @return A node in an 'acquired' state, or TIMED_OUT if the thread fails to acquire it before maxWait has elapsed.
      */
-    private QNode acquireNode(Backoff backoff, long startTime, int maxWait) throws TimeoutException {
-        QNode node = mWaiting[mRandom.nextInt(SIZE)];
-        QNode currentTail;
+    private int acquireNode(long startTime, long maxWait) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int node = random.nextInt(mActiveNodes);
+        long limit = mMinBackoff;
+        int attempt = 0;
 
         while(true) {
-            if (node.mState.compareAndSet(State.FREE, State.WAITING)) {
+            if (mNodes.compareAndSet(state(node), FREE, WAITING)) {
                 return node;
             }
 
-            int[] stamp = new int[1];
-            currentTail = mTail.get(stamp);
-            State state = node.mState.get();
+            long currentTail = mTail.get();
+            int state = mNodes.get(state(node));
 
-            if (state == State.ABORTED || state == State.RELEASED) {
+            if (state == ABORTED || state == RELEASED) {
                 // Condition check to make sure only one thread cleans up the node
-                if (node == currentTail) {
+                if (node == tailNode(currentTail)) {
                     // Cleanup: if the state is aborted and this is the last node in the queue, we must change the tail
                     // shared global variable so it points to the aborted node's predecessor.
                     // If the state is released, that means it has just been set as such by its predecessor, who has
                     // just quit its critical section. There is no need to enqueue then, we can just acquire the node
                     // immediately, then the lock and we can set the queue as empty by setting its tail to null.
-                    QNode predecessor = null;
-                    if (state == State.ABORTED) {
-                        predecessor = node.mPredecessor;
+                    int predecessor = NONE;
+                    if (state == ABORTED) {
+                        predecessor = mNodes.get(predecessor(node));
                     }
-                    if (mTail.compareAndSet(currentTail, predecessor, stamp[0], stamp[0] + 1)) {
-                        node.mState.set(State.WAITING);
+                    if (mTail.compareAndSet(currentTail, tail(predecessor, nextStamp(tailStamp(currentTail))))) {
+                        mNodes.set(state(node), WAITING);
                         return node;
                     }
                 }
             }
-            backoff.backoff();
-            if (System.currentTimeMillis() - startTime > maxWait) throw new TimeoutException();
+
+            // Only counted in adaptive mode, it is one more contended write otherwise.
+            if (mAdaptive) mBackoffs.incrementAndGet();
+            long deadline = System.nanoTime() + random.nextLong(limit);
+            limit = Math.min(mMaxBackoff, limit * 2);
+            while (System.nanoTime() - deadline < 0) {
+                mSpinPolicy.spin(attempt++);
+            }
+
+            if (System.nanoTime() - startTime > maxWait) return TIMED_OUT;
         }
     }
 
@@ -181,120 +418,99 @@ public class CompositeLockBankAccount extends Account {
      * @param node The 'acquired' node that is being tried to splice into the virtual queue of WAITING threads.
      * @param startTime The time this thread started trying to acquire the lock.
      * @param maxWait The maximum amount of time a thread is allowed to backoff before failing with a timeout.
-     * @return The predecessor of the node in the virtual node queue. At this point, the node has been inserted into the
-     * queue, so the returned item corresponds to the before-to-last node in the queue.
-     * @throws TimeoutException If the thread fails to splice the node into the queue before maxWait has elapsed.
+     * @return The predecessor of the node in the virtual node queue (NONE if the queue was empty), or TIMED_OUT if the
+     * thread fails to splice the node into the queue before maxWait has elapsed. At this point, the node has been
+     * inserted into the queue, so the returned item corresponds to the before-to-last node in the queue.
      */
-    private QNode spliceNode(QNode node, long startTime, int maxWait) throws TimeoutException {
-        QNode currentTail;
-        int[] stamp;
+    private int spliceNode(int node, long startTime, long maxWait) {
+        long currentTail;
 
         do {
-            stamp = new int[1];
-            currentTail = mTail.get(stamp);
-            if (System.currentTimeMillis() - startTime > maxWait) {
-                node.mState.set(State.FREE);
-                throw new TimeoutException();
+            currentTail = mTail.get();
+            if (System.nanoTime() - startTime > maxWait) {
+                mNodes.set(state(node), FREE);
+                return TIMED_OUT;
             }
-        } while (!mTail.compareAndSet(currentTail, node, stamp[0], stamp[0] + 1));
+        } while (!mTail.compareAndSet(currentTail, tail(node, nextStamp(tailStamp(currentTail)))));
 
-        return currentTail;
+        return tailNode(currentTail);
     }
 
     /**
      * Spin waits for the predecessors in the virtual node queue to complete before acquiring the lock.
-     * Once this method returns without an exception, the thread can consider the lock to be 'acquired'.
+     * Once this method returns true, the thread can consider the lock to be 'acquired'.
      *
      * @param predecessor This thread's acquired node's predecessor.
      * @param node This thread's acquired node.
      * @param startTime The time this thread started trying to acquire the lock.
      * @param maxWait The maximum amount of time a thread is allowed to backoff before failing with a timeout.
-     * @throws TimeoutException If the thread fails to acquire the lock before maxWait has elapsed.
+     * @return false if the thread fails to acquire the lock before maxWait has elapsed.
      */
-    private void waitForPredecessor(QNode predecessor, QNode node, long startTime, int maxWait) throws TimeoutException {
-        if (predecessor == null) {
-            mStatus.set(node);
-            return;
+    private boolean waitForPredecessor(int predecessor, int node, long startTime, long maxWait) {
+        if (predecessor == NONE) {
+            mHeldNode = node;
+            return true;
         }
 
-        State predecessorState = predecessor.mState.get();
-        while(predecessorState != State.RELEASED) {
-            if (predecessorState == State.ABORTED) {
-                QNode temp = predecessor;
-                predecessor = predecessor.mPredecessor;
-                temp.mState.set(State.FREE);
+        int predecessorState = mNodes.get(state(predecessor));
+        for (int attempt = 0; predecessorState != RELEASED; attempt++) {
+            if (predecessorState == ABORTED) {
+                int temp = predecessor;
+                predecessor = mNodes.get(predecessor(predecessor));
+                mNodes.set(state(temp), FREE);
             }
 
-            if (System.currentTimeMillis() - startTime > maxWait) {
-                node.mPredecessor = predecessor;
-                node.mState.set(State.ABORTED);
-                throw new TimeoutException();
+            if (System.nanoTime() - startTime > maxWait) {
+                // The predecessor is published by the (volatile) state write.
+                mNodes.lazySet(predecessor(node), predecessor);
+                mNodes.set(state(node), ABORTED);
+                return false;
             }
 
-            predecessorState = predecessor.mState.get();
+            mSpinPolicy.spin(attempt);
+            predecessorState = mNodes.get(state(predecessor));
         }
-        predecessor.mState.set(State.FREE);
-        mStatus.set(node);
+        mNodes.set(state(predecessor), FREE);
+        mHeldNode = node;
+        return true;
     }
 
     /**
      * Releases the lock.
      */
-    protected void unlock() {
-        QNode QNode = mStatus.get();
-        QNode.mState.set(State.RELEASED);
-        mStatus.set(null);
+    protected void release() {
+        mNodes.set(state(mHeldNode), RELEASED);
     }
 
-    private class Backoff {
-        private int mLimit = MIN_BACKOFF;
-        private final Random mRandom = new Random();
-
-        public void backoff() {
-            int delay = mRandom.nextInt(mLimit);
-            mLimit = Math.min(MAX_BACKOFF, mLimit * 2);
+    /**
+     * @param node The index of the last node of the queue, or NONE.
+     * @param stamp The stamp.
+     * @return The value of mTail for this node and stamp.
+     */
+    protected static long tail(int node, int stamp) {
+        return ((long) stamp << 32) | ((node + 1) & 0xFFFFFFFFL);
+    }
 
-            try {
-                Thread.sleep(delay);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-        }
+    protected static int tailNode(long tail) {
+        return (int) tail - 1;
+    }
 
-        public void reset() {
-            mLimit = MIN_BACKOFF;
-        }
+    protected static int tailStamp(long tail) {
+        return (int) (tail >>> 32);
     }
 
-    protected static class QNode {
-        private AtomicReference<State> mState;
-        private QNode mPredecessor;
+    /**
+     * @return The stamp following the given one. Flags (the upper bits) are left untouched.
+     */
+    protected static int nextStamp(int stamp) {
+        return (stamp & ~STAMP_COUNTER) | ((stamp + 1) & STAMP_COUNTER);
+    }
 
-        public QNode() {
-            mState = new AtomicReference<>(State.FREE);
-        }
+    private static int state(int node) {
+        return (node + 1) * STEP;
     }
 
-    private enum State {
-        /**
-         * Node's initial state, free for acquiring. A node may be set to FREE back from WAITING only if it is the
-         * tail of the queue. A node may be set FREE from ABORTED once proper cleanup has been performed. A node
-         * may be set FREE from RELEASED once its predecessor has acquired the lock.
-         */
-        FREE,
-        /**
-         * Node that has been acquired, the thread that acquired it is currently spinning to wait for the lock.
-         */
-        WAITING,
-        /**
-         * Node whose thread has just quit its critical section. It is now free for acquiring by the previous node
-         * in the queue. If no other node is in the queue, should be marked as FREE.
-         */
-        RELEASED,
-        /**
-         * Enqueued node in which its timeout has transpired. Successor's predecessor in the queue should be updated
-         * to this node's predecessor to maintain consistency. After cleanup, should be marked as FREE.
-         */
-        ABORTED
+    private static int predecessor(int node) {
+        return (node + 1) * STEP + PREDECESSOR;
     }
 }
@@ -0,0 +1,235 @@
+package edu.puc.mecolab.spinlocks.concurrent;
+
+import edu.puc.mecolab.spinlocks.Account;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Delegation instead of locking (in the style of RCL and ffwd): a dedicated server thread owns the balance and is the
+ * only one that ever touches it, so neither the balance nor any lock word ever moves between cores. Clients post their
+ * deposits and withdrawals to the server and wait for its answer.
+ *
+ * Each client has a request line of its own, where it writes its amount together with a sequence number in a single
+ * long. The server sweeps all request lines, applies the new requests, and answers by writing the served sequence
+ * number (along with the resulting balance) in the client's response slot. Responses are grouped in lines of
+ * {@link DelegationBankAccount#GROUP} clients which are written all at once after the whole group has been served, so a
+ * single cache line transfer answers up to GROUP clients. Clients spin on their own response slot.
+ *
+ * The server needs a core of its own, it spins all the time (yielding when it has been idle for a while). It is started
+ * by the first thread that uses the account, and it is a daemon thread, so it does not keep the program alive; it may
+ * also be stopped through {@link DelegationBankAccount#shutdown()}.
+ *
+ * Each client thread takes a slot (its request line and response slot) the first time it uses the account. The slot
+ * of a thread that has died is taken over by the next thread that needs one, so the maximum number of clients only
+ * limits the threads using the account at the same time.
+ */
+public class DelegationBankAccount extends Account {
+    private static final int DEFAULT_MAX_CLIENTS = 128;
+
+    /**
+     * Number of longs in a cache line (8 longs = 64 bytes, a usual cache line size). Also the number of clients whose
+     * responses share a line.
+     */
+    private static final int GROUP = 8;
+
+    /**
+     * Number of iterations a thread (either client or server) spins idle before yielding its core.
+     */
+    private static final int SPINS_BEFORE_YIELD = 1 << 12;
+
+    private static final long SEQUENCE_MASK = 0xFFFFFFFFL;
+
+    private final int mMaxClients;
+
+    /**
+     * Published by the server after each sweep, so it can be read by anyone.
+     */
+    private volatile int mAmount;
+
+    /**
+     * One request per line: sequence number in the upper half, amount in the lower half.
+     */
+    private AtomicLongArray mRequests;
+
+    /**
+     * GROUP responses per line: served sequence number in the upper half, resulting balance in the lower half.
+     */
+    private AtomicLongArray mResponses;
+
+    /**
+     * Number of slots ever taken (may go past mMaxClients when threads find no free slot).
+     */
+    private AtomicInteger mClients;
+    /**
+     * The thread each slot belongs to.
+     */
+    private AtomicReferenceArray<Thread> mOwners;
+    private ThreadLocal<Client> mClient;
+
+    private volatile boolean mRunning;
+    private AtomicReference<Thread> mServer;
+
+    public DelegationBankAccount(int amount) {
+        this(amount, DEFAULT_MAX_CLIENTS);
+    }
+
+    /**
+     * @param amount The initial amount.
+     * @param maxClients Maximum number of threads that may use this account at the same time.
+     */
+    public DelegationBankAccount(int amount, int maxClients) {
+        mAmount = amount;
+        mMaxClients = maxClients;
+
+        // Padding is added at both ends, so that no line is shared with other objects.
+        mRequests = new AtomicLongArray((maxClients + 2) * GROUP);
+        mResponses = new AtomicLongArray((maxClients / GROUP + 3) * GROUP);
+
+        mClients = new AtomicInteger(0);
+        mOwners = new AtomicReferenceArray<>(maxClients);
+        mClient = ThreadLocal.withInitial(this::register);
+
+        mRunning = true;
+        mServer = new AtomicReference<>(null);
+    }
+
+    public void deposit(int amount) {
+        delegate(amount);
+    }
+
+    public void withdraw(int amount) {
+        delegate(- amount);
+    }
+
+    public int getAmount() {
+        return mAmount;
+    }
+
+    /**
+     * Stops the server thread. Operations attempted afterwards never complete.
+     */
+    public void shutdown() {
+        mRunning = false;
+    }
+
+    /**
+     * Posts an operation to the server and waits for it to be served.
+     *
+     * @param delta The operation's amount, positive for deposits and negative for withdrawals.
+     * @return The balance right after the operation.
+     */
+    private int delegate(int delta) {
+        Client client = mClient.get();
+        int sequence = ++client.mSequence;
+        mRequests.set(client.mRequestIndex, ((long) sequence << 32) | (delta & SEQUENCE_MASK));
+
+        int spins = 0;
+        long response;
+        while ((int) ((response = mResponses.get(client.mResponseIndex)) >>> 32) != sequence) {
+            if (++spins == SPINS_BEFORE_YIELD) {
+                spins = 0;
+                Thread.yield();
+            }
+        }
+
+        return (int) response;
+    }
+
+    private void serve() {
+        int amount = mAmount;
+        // Sequence number last served for each client, only accessed by the server.
+        int[] served = new int[mMaxClients];
+        long[] responses = new long[GROUP];
+
+        int idle = 0;
+        while (mRunning) {
+            int clients = Math.min(mClients.get(), mMaxClients);
+            boolean busy = false;
+
+            for (int group = 0; group * GROUP < clients; group++) {
+                int first = group * GROUP;
+                int last = Math.min(first + GROUP, clients);
+                int answered = 0;
+
+                for (int i = first; i < last; i++) {
+                    long request = mRequests.get(requestIndex(i));
+                    int sequence = (int) (request >>> 32);
+                    if (sequence != served[i]) {
+                        amount += (int) request;
+                        served[i] = sequence;
+                        responses[i - first] = ((long) sequence << 32) | (amount & SEQUENCE_MASK);
+                        answered |= 1 << (i - first);
+                    }
+                }
+
+                if (answered != 0) {
+                    busy = true;
+                    mAmount = amount;
+                    for (int i = first; i < last; i++) {
+                        if ((answered & (1 << (i - first))) != 0) mResponses.set(responseIndex(i), responses[i - first]);
+                    }
+                }
+            }
+
+            if (busy) {
+                idle = 0;
+            } else if (++idle == SPINS_BEFORE_YIELD) {
+                idle = 0;
+                Thread.yield();
+            }
+        }
+    }
+
+    /**
+     * Takes a slot for the calling thread, a new one or one left by a thread that has died. Starts the server if it has
+     * not been started yet.
+     */
+    private Client register() {
+        if (mServer.get() == null) startServer();
+
+        Thread me = Thread.currentThread();
+        int index = mClients.getAndIncrement();
+        if (index < mMaxClients) {
+            mOwners.set(index, me);
+            return new Client(index, 0);
+        }
+
+        for (int i = 0; i < mMaxClients; i++) {
+            Thread owner = mOwners.get(i);
+            // A dead thread's last request has been served (it waited for the answer), we carry on from its sequence.
+            if (owner != null && !owner.isAlive() && mOwners.compareAndSet(i, owner, me)) {
+                return new Client(i, (int) (mRequests.get(requestIndex(i)) >>> 32));
+            }
+        }
+        throw new IllegalStateException("Too many live threads for this account: " + mMaxClients);
+    }
+
+    private void startServer() {
+        Thread server = new Thread(this::serve, "DelegationBankAccount server");
+        server.setDaemon(true);
+        if (mServer.compareAndSet(null, server)) server.start();
+    }
+
+    private static int requestIndex(int client) {
+        return (client + 1) * GROUP;
+    }
+
+    private static int responseIndex(int client) {
+        return GROUP + client;
+    }
+
+    private static class Client {
+        private final int mRequestIndex;
+        private final int mResponseIndex;
+        private int mSequence;
+
+        private Client(int index, int sequence) {
+            mRequestIndex = requestIndex(index);
+            mResponseIndex = responseIndex(index);
+            mSequence = sequence;
+        }
+    }
+}
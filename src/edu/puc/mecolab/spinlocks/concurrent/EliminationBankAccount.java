@@ -0,0 +1,140 @@
+package edu.puc.mecolab.spinlocks.concurrent;
+
+import edu.puc.mecolab.spinlocks.Account;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Elimination layer in front of any other account. A deposit and a withdrawal arriving at the same time cancel each
+ * other out (at least partially), so there is no need for both of them to go through the account's lock.
+ *
+ * Before going to the underlying account, a thread picks a random slot of the elimination array. If the slot is empty,
+ * it leaves its operation there and waits a few iterations for a complementary one. If the slot holds a complementary
+ * operation, the thread claims it, applies the net amount of both operations to the account (nothing at all if they
+ * were equal amounts, which in the worst case still halves the number of lock acquisitions) and lets the waiting thread
+ * go. In any other case (slot busy, same kind of operation, nobody showed up in time), the thread falls through to the
+ * underlying account.
+ *
+ * Each slot is a single long, updated through CAS: its upper half holds the slot's state and its lower half the
+ * waiting operation's amount (positive for deposits, negative for withdrawals).
+ */
+public class EliminationBankAccount extends Account {
+    private static final int DEFAULT_WIDTH = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+
+    /**
+     * Number of iterations a thread waits for a complementary operation.
+     */
+    private static final int SPINS = 128;
+
+    /**
+     * Distance between two slots in the shared array.
+     */
+    private static final int STEP = CacheLine.LONGS;
+
+    private static final long EMPTY = 0;
+    private static final long WAITING = 1L << 32;
+    // A complementary operation claimed the waiting one and is applying the net amount.
+    private static final long CLAIMED = 2L << 32;
+    // Net amount applied, the waiting thread may leave.
+    private static final long DONE = 3L << 32;
+    private static final long STATE_MASK = 0xFFFFFFFFL << 32;
+
+    private final Account mAccount;
+    private final int mWidth;
+    private AtomicLongArray mSlots;
+
+    private LongAdder mEliminated;
+
+    public EliminationBankAccount(Account account) {
+        this(account, DEFAULT_WIDTH);
+    }
+
+    /**
+     * @param account The account operations fall through to when they are not eliminated.
+     * @param width The number of slots in the elimination array.
+     */
+    public EliminationBankAccount(Account account, int width) {
+        if (width < 1) throw new IllegalArgumentException("At least one slot is required");
+
+        mAccount = account;
+        mWidth = width;
+        // Padding is added at both ends, so that no slot shares its line with other objects.
+        mSlots = new AtomicLongArray((width + 1) * STEP);
+        mEliminated = new LongAdder();
+    }
+
+    public void deposit(int amount) {
+        if (!eliminate(amount)) mAccount.deposit(amount);
+    }
+
+    public void withdraw(int amount) {
+        if (!eliminate(- amount)) mAccount.withdraw(amount);
+    }
+
+    public int getAmount() {
+        return mAccount.getAmount();
+    }
+
+    @Override
+    public String getStatistics() {
+        String statistics = "Eliminated pairs: " + mEliminated.sum();
+        String accountStatistics = mAccount.getStatistics();
+        return accountStatistics == null ? statistics : statistics + "\n" + accountStatistics;
+    }
+
+    /**
+     * Attempts to cancel out an operation against a complementary one.
+     *
+     * @param delta The operation's amount, positive for deposits and negative for withdrawals.
+     * @return true if the operation has been completed, false if it must still be applied to the underlying account.
+     */
+    private boolean eliminate(int delta) {
+        if (delta == 0) return true;
+
+        int index = (ThreadLocalRandom.current().nextInt(mWidth) + 1) * STEP;
+        long slot = mSlots.get(index);
+
+        if (slot == EMPTY) {
+            long offer = WAITING | (delta & 0xFFFFFFFFL);
+            if (!mSlots.compareAndSet(index, EMPTY, offer)) return false;
+
+            for (int i = 0; i < SPINS && mSlots.get(index) == offer; i++) {}
+
+            // Nobody showed up, withdraw the offer.
+            if (mSlots.compareAndSet(index, offer, EMPTY)) return false;
+
+            // Our offer was claimed. Wait for the net amount to be applied (which takes the account's lock), then free
+            // the slot.
+            while (mSlots.get(index) != DONE) {
+                SpinHint.onSpinWait();
+            }
+            mSlots.set(index, EMPTY);
+            return true;
+        }
+
+        if ((slot & STATE_MASK) == WAITING) {
+            int other = (int) slot;
+            if ((other > 0) == (delta > 0)) return false;
+            if (!mSlots.compareAndSet(index, slot, CLAIMED)) return false;
+
+            // Amounts have opposite signs, their sum cannot overflow. The waiting thread is let go even if the account
+            // throws, the exception then reaches us only.
+            int net = delta + other;
+            try {
+                if (net > 0) {
+                    mAccount.deposit(net);
+                } else if (net < 0) {
+                    mAccount.withdraw(- net);
+                }
+            } finally {
+                mSlots.set(index, DONE);
+            }
+            mEliminated.increment();
+            return true;
+        }
+
+        return false;
+    }
+}
@@ -1,26 +1,71 @@
 package edu.puc.mecolab.spinlocks.concurrent;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * A composite lock optimized to perform better in uncontended scenarios. When retrieving the lock, if no node is found
  * at the tail, we assume an uncontended scenario. We mark this situation by placing a high order bit on the node's stamp.
  *
  * In this case, we avoid all the overhead of node claiming, splicing and queue cleanup. Otherwise, we fall back to the
  * original composite lock implementation.
+ *
+ * A thread that gets the lock through the queue may still have to wait for a fast path holder to leave. That wait is
+ * bounded by the same timeout as the rest of the acquisition; on timeout, the thread gives up its place in the queue.
+ * If queued threads keep running into fast path holders (over {@link FastPathCompositeLockBankAccount#MAX_COLLISIONS}
+ * of the acquisitions), the lock is clearly contended and the fast path only gets in the way, so it is disabled for
+ * the next {@link FastPathCompositeLockBankAccount#COOLDOWN} acquisitions.
  */
 public class FastPathCompositeLockBankAccount extends CompositeLockBankAccount {
     private static final int  FASTPATH = 1 << 30; // 0b01000000000000000000000000000000
 
+    /**
+     * Number of acquisitions through the queue between two checks of the collision rate.
+     */
+    private static final int WINDOW = 256;
+    private static final double MAX_COLLISIONS = 0.1;
+    private static final int COOLDOWN = 4096;
+
+    // Read by every thread attempting the fast path, only written by the lock holder.
+    private volatile boolean mFastPathEnabled = true;
+
+    /**
+     * Number of queued threads that found a fast path holder in the critical section.
+     */
+    private AtomicInteger mCollisions = new AtomicInteger(0);
+
+    // Only accessed by the lock holder.
+    private int mQueueAcquisitions;
+    private int mCooldown;
+    private int mTimesDisabled;
+
     public FastPathCompositeLockBankAccount(int amount) {
         super(amount);
     }
 
+    public FastPathCompositeLockBankAccount(int amount, boolean adaptive) {
+        super(amount, adaptive);
+    }
+
+    public FastPathCompositeLockBankAccount(int amount, int size, long minBackoff, long maxBackoff, long threshold,
+                                            boolean adaptive) {
+        super(amount, size, minBackoff, maxBackoff, threshold, adaptive);
+    }
+
+    public FastPathCompositeLockBankAccount(int amount, SpinPolicy spinPolicy) {
+        super(amount, spinPolicy);
+    }
+
+    public FastPathCompositeLockBankAccount(int amount, int size, long minBackoff, long maxBackoff, long threshold,
+                                            boolean adaptive, SpinPolicy spinPolicy) {
+        super(amount, size, minBackoff, maxBackoff, threshold, adaptive, spinPolicy);
+    }
+
     private boolean fastPathLock() {
-        int[] stamp = {0};
-        QNode node = mTail.get(stamp);
-        int oldStamp = stamp[0];
+        long tail = mTail.get();
+        int oldStamp = tailStamp(tail);
 
         // If there are queued nodes, we are in a contended scenario and cannot use fast path.
-        if (node != null) {
+        if (tailNode(tail) != NONE) {
             return false;
         }
 
@@ -30,55 +75,90 @@ public class FastPathCompositeLockBankAccount extends CompositeLockBankAccount {
             return false;
         }
 
-        int newStamp = (oldStamp + 1) | FASTPATH;
+        int newStamp = nextStamp(oldStamp) | FASTPATH;
 
-        // Do note fast path does not enqueue anything, the reference remains null, we just change the stamp.
-        return mTail.compareAndSet(node, null, oldStamp, newStamp);
+        // Do note fast path does not enqueue anything, the tail remains empty, we just change the stamp.
+        return mTail.compareAndSet(tail, tail(NONE, newStamp));
     }
 
     private boolean fastPathUnlock() {
-        int oldStamp = mTail.getStamp();
         // If the tail's stamp has not the FASTPATH bit set, this is not a fast path lock and we must fall back to the
         // regular unlock.
-        if ((oldStamp & FASTPATH) == 0) {
+        if ((tailStamp(mTail.get()) & FASTPATH) == 0) {
             return false;
         }
 
         // We simply remove the FASTPATH bit from the stamp (it will be preserved by all nodes enqueueing themselves).
-        // There should be no way for the CAS to fail.
-        int[] stamp = {0};
-        int newStamp;
-        QNode node;
-        do {
-            node = mTail.get(stamp);
-            oldStamp = stamp[0];
-            newStamp = oldStamp & (~FASTPATH);
-        } while (!mTail.compareAndSet(node, node, oldStamp, newStamp));
+        // Since we know the bit is set and nobody else clears it, subtracting it does the job in a single atomic
+        // operation, regardless of concurrent changes to the rest of the tail.
+        mTail.getAndAdd(- ((long) FASTPATH << 32));
 
         return true;
     }
 
     @Override
-    protected boolean tryLock(int maxWait) {
-        if (fastPathLock()) {
+    public String getStatistics() {
+        return super.getStatistics() + ", fast path disabled " + mTimesDisabled + " times";
+    }
+
+    @Override
+    protected boolean isLocked() {
+        return (tailStamp(mTail.get()) & FASTPATH) != 0 || super.isLocked();
+    }
+
+    @Override
+    protected boolean tryLock(long maxWait) {
+        if (mFastPathEnabled && fastPathLock()) {
             return true;
         }
 
-        if (super.tryLock(maxWait)) {
-            // If a previous thread used fast lock, this thread needs to first wait for it to finish its work.
-            // We do so in this loop.
-            // TODO: timeout if previous thread's critical section duration exceeds maxWait.
-            while ((mTail.getStamp() & FASTPATH) != 0) {};
-            return true;
+        long startTime = System.nanoTime();
+        if (!super.tryLock(maxWait)) {
+            return false;
+        }
+
+        // If a previous thread used fast lock, this thread needs to first wait for it to finish its work.
+        // We do so in this loop, within whatever is left of maxWait.
+        if ((tailStamp(mTail.get()) & FASTPATH) != 0) {
+            mCollisions.incrementAndGet();
+            for (int attempt = 0; (tailStamp(mTail.get()) & FASTPATH) != 0; attempt++) {
+                if (System.nanoTime() - startTime > maxWait) {
+                    // Give up our place in the queue, the thread behind us will wait for the fast path holder instead.
+                    super.release();
+                    return false;
+                }
+                mSpinPolicy.spin(attempt);
+            }
         }
 
-        return false;
+        checkCollisions();
+        return true;
+    }
+
+    /**
+     * Disables the fast path if queued threads collide too often with fast path holders, and enables it again after
+     * the cooldown. Must be called by the lock holder.
+     */
+    private void checkCollisions() {
+        if (!mFastPathEnabled) {
+            if (--mCooldown == 0) mFastPathEnabled = true;
+            return;
+        }
+
+        if (++mQueueAcquisitions < WINDOW) return;
+
+        if (mCollisions.getAndSet(0) > MAX_COLLISIONS * mQueueAcquisitions) {
+            mFastPathEnabled = false;
+            mCooldown = COOLDOWN;
+            mTimesDisabled++;
+        }
+        mQueueAcquisitions = 0;
     }
 
     @Override
-    protected void unlock() {
+    protected void release() {
         if (!fastPathUnlock()) {
-            super.unlock();
+            super.release();
         }
     }
 }
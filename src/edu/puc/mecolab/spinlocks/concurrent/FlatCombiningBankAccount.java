@@ -0,0 +1,188 @@
+package edu.puc.mecolab.spinlocks.concurrent;
+
+import edu.puc.mecolab.spinlocks.Account;
+import edu.puc.mecolab.spinlocks.locks.TTASLock;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Flat combining: instead of every thread acquiring the lock to perform its own (tiny) critical section, each thread
+ * publishes its request in a publication record of its own, and whichever thread gets the lock (the combiner) performs
+ * all pending requests at once. Requests are netted before the balance is touched, so a whole pass of deposits and
+ * withdrawals ends up as a single update. Threads whose request has not been served yet simply spin on their own
+ * record, only trying to become the combiner when the lock is free.
+ *
+ * The combiner lock is a {@link TTASLock} (see {@link TTASLockBankAccount}). Every {@link FlatCombiningBankAccount#CLEANUP_INTERVAL}
+ * passes, the combiner unlinks the records that have not been served for
+ * {@link FlatCombiningBankAccount#MAX_IDLE_PASSES} passes, so that threads that are gone (or no longer use the account)
+ * neither take up memory nor slow down combining. A thread whose record is not linked (including a thread using the
+ * account for the first time) takes the lock, links its record and combines itself.
+ */
+public class FlatCombiningBankAccount extends Account {
+    private static final int CLEANUP_INTERVAL = 64;
+    private static final int MAX_IDLE_PASSES = 256;
+
+    private int mAmount;
+
+    private TTASLock mLock;
+
+    /**
+     * Head of the publication list. Records are only linked and unlinked while holding the lock.
+     */
+    private AtomicReference<Record> mRecords;
+    private ThreadLocal<Record> mMyRecord;
+
+    // Only accessed by the combiner.
+    private long mCombiningPasses;
+    private long mCombinedOperations;
+
+    private final SpinPolicy mSpinPolicy;
+
+    public FlatCombiningBankAccount(int amount) {
+        this(amount, SpinPolicy.BUSY);
+    }
+
+    /**
+     * @param amount The initial amount.
+     * @param spinPolicy What threads do each time they find their request not served yet and the lock busy.
+     */
+    public FlatCombiningBankAccount(int amount, SpinPolicy spinPolicy) {
+        mAmount = amount;
+        mSpinPolicy = spinPolicy;
+        mLock = new TTASLock(spinPolicy);
+        mRecords = new AtomicReference<>(null);
+        mMyRecord = ThreadLocal.withInitial(Record::new);
+    }
+
+    public void deposit(int amount) {
+        apply(amount);
+    }
+
+    public void withdraw(int amount) {
+        apply(- amount);
+    }
+
+    public int getAmount() {
+        return mAmount;
+    }
+
+    @Override
+    public String getStatistics() {
+        double perPass = mCombiningPasses == 0 ? 0 : (double) mCombinedOperations / mCombiningPasses;
+        return "Combining passes: " + mCombiningPasses + String.format(", operations per pass: %.2f", perPass);
+    }
+
+    private void apply(int delta) {
+        Record record = mMyRecord.get();
+        record.mDelta = delta;
+        if (!record.mState.compareAndSet(Record.IDLE, Record.PENDING)) {
+            relink(record);
+            return;
+        }
+
+        // Wait for someone else to serve us, becoming the combiner as soon as the lock is free. tryLock() only attempts
+        // the CAS when the lock looks free.
+        for (int attempt = 0; record.mState.get() == Record.PENDING; attempt++) {
+            if (mLock.tryLock()) {
+                // Our own request is pending, so it is served during our pass (if no one did before).
+                combine();
+                mLock.unlock();
+                return;
+            }
+            mSpinPolicy.spin(attempt);
+        }
+    }
+
+    private void combine() {
+        int net = 0;
+        int count = 0;
+        for (Record record = mRecords.get(); record != null; record = record.mNext) {
+            if (record.mState.get() == Record.PENDING) {
+                net += record.mDelta;
+                record.mCollected = true;
+                count++;
+            }
+        }
+
+        mAmount += net;
+
+        // Requests are only marked as served once the balance has been updated. Records that became pending after the
+        // first pass are left for the next combiner.
+        for (Record record = mRecords.get(); record != null; record = record.mNext) {
+            if (record.mCollected) {
+                record.mCollected = false;
+                record.mLastServedPass = mCombiningPasses;
+                record.mState.set(Record.IDLE);
+            }
+        }
+
+        mCombiningPasses++;
+        mCombinedOperations += count;
+
+        if (mCombiningPasses % CLEANUP_INTERVAL == 0) cleanUp();
+    }
+
+    /**
+     * Unlinks the records that have been idle for too long. Only called by the combiner.
+     */
+    private void cleanUp() {
+        Record previous = null;
+        Record record = mRecords.get();
+        while (record != null) {
+            Record next = record.mNext;
+            // Once unlinked, the owner finds out as soon as it publishes its next request.
+            if (mCombiningPasses - record.mLastServedPass > MAX_IDLE_PASSES
+                    && record.mState.compareAndSet(Record.IDLE, Record.UNLINKED)) {
+                if (previous == null) {
+                    mRecords.set(next);
+                } else {
+                    previous.mNext = next;
+                }
+            } else {
+                previous = record;
+            }
+            record = next;
+        }
+    }
+
+    /**
+     * Links a record that is not in the publication list and serves its request. Done while holding the lock, so that
+     * the record is not linked again before the combiner that unlinked it is done with it.
+     */
+    private void relink(Record record) {
+        mLock.lock();
+
+        record.mState.set(Record.PENDING);
+        record.mNext = mRecords.get();
+        mRecords.set(record);
+
+        combine();
+        mLock.unlock();
+    }
+
+    private static class Record {
+        /**
+         * No request pending, the record is in the publication list.
+         */
+        private static final int IDLE = 0;
+        /**
+         * The owner has published a request, which the combiner has not served yet.
+         */
+        private static final int PENDING = 1;
+        /**
+         * The record is not in the publication list: it is new, or the combiner has unlinked it.
+         */
+        private static final int UNLINKED = 2;
+
+        // Written by the owner before publishing its request, read by the combiner after finding it pending.
+        private int mDelta;
+        // The owner moves it from IDLE to PENDING, the combiner from PENDING to IDLE (once served) or from IDLE to
+        // UNLINKED. Only the owner, holding the lock, moves it from UNLINKED to PENDING.
+        private final AtomicInteger mState = new AtomicInteger(UNLINKED);
+        // Only accessed by the combiner (or by the owner holding the lock).
+        private boolean mCollected;
+        private long mLastServedPass;
+        private Record mNext;
+    }
+}
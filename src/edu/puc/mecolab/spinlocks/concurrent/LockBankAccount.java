@@ -0,0 +1,36 @@
+package edu.puc.mecolab.spinlocks.concurrent;
+
+import edu.puc.mecolab.spinlocks.Account;
+
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Account guarded by any {@link Lock}, e.g. one of the spin locks in {@link edu.puc.mecolab.spinlocks.locks}. Allows
+ * comparing them against each other (and against {@link java.util.concurrent.locks.ReentrantLock}) in the same setting
+ * as the other accounts.
+ */
+public class LockBankAccount extends Account {
+    private final Lock mLock;
+    private int mAmount;
+
+    public LockBankAccount(int amount, Lock lock) {
+        mAmount = amount;
+        mLock = lock;
+    }
+
+    public void deposit(int amount) {
+        mLock.lock();
+        mAmount += amount;
+        mLock.unlock();
+    }
+
+    public void withdraw(int amount) {
+        mLock.lock();
+        mAmount -= amount;
+        mLock.unlock();
+    }
+
+    public int getAmount() {
+        return mAmount;
+    }
+}
@@ -0,0 +1,189 @@
+package edu.puc.mecolab.spinlocks.concurrent;
+
+import edu.puc.mecolab.spinlocks.Account;
+
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lock queueing algorithm similar to {@link CLHLockBankAccount}, but in which the queue is an explicit linked list:
+ * each node holds a reference to its successor instead of its predecessor. A thread spins on the flag of its OWN node,
+ * which is cleared by its predecessor when unlocking. Since the flag lives in the waiting thread's node, spinning stays
+ * local to that thread's cache, which pays off on architectures where caches are not shared (e.g. multi-socket
+ * machines), unlike CLH where each thread spins on memory that was last written by another thread.
+ *
+ * Unlike CLH, nodes are never exchanged between threads: each thread keeps reusing its own node, so no allocation
+ * takes place after a thread's first lock. A thread's node is its {@link Handle}: callers may own their handles (see
+ * {@link MCSLockBankAccount#newHandle()}) and pass them along, otherwise one is looked up per operation.
+ *
+ * Optionally, threads may spin only for an adaptive amount of iterations (see {@link SpinBudget}) and then park until
+ * their predecessor unparks them, as in {@link CLHLockBankAccount}. Since each thread parks on its own node, its
+ * predecessor knows exactly whom to unpark.
+ */
+public class MCSLockBankAccount extends Account {
+    private int mAmount;
+
+    private AtomicReference<Handle> mTail;
+    private ThreadLocal<Handle> mMyNode;
+
+    private final SpinPolicy mSpinPolicy;
+    private final boolean mSpinThenPark;
+    private final SpinBudget mSpinBudget;
+
+    public MCSLockBankAccount(int amount) {
+        this(amount, false);
+    }
+
+    /**
+     * @param amount The initial amount.
+     * @param spinThenPark Whether waiting threads should park after spinning for a while.
+     */
+    public MCSLockBankAccount(int amount, boolean spinThenPark) {
+        this(amount, spinThenPark, SpinPolicy.BUSY);
+    }
+
+    /**
+     * @param amount The initial amount.
+     * @param spinPolicy What waiting threads do each time they find the lock busy.
+     */
+    public MCSLockBankAccount(int amount, SpinPolicy spinPolicy) {
+        this(amount, false, spinPolicy);
+    }
+
+    /**
+     * @param amount The initial amount.
+     * @param spinThenPark Whether waiting threads should park after spinning for a while.
+     * @param spinPolicy What waiting threads do each time they find the lock busy (while spinning).
+     */
+    public MCSLockBankAccount(int amount, boolean spinThenPark, SpinPolicy spinPolicy) {
+        mAmount = amount;
+
+        mTail = new AtomicReference<>(null);
+
+        mMyNode = ThreadLocal.withInitial(Handle::new);
+
+        mSpinPolicy = spinPolicy;
+        mSpinThenPark = spinThenPark;
+        mSpinBudget = new SpinBudget();
+    }
+
+    public void deposit(int amount) {
+        deposit(mMyNode.get(), amount);
+    }
+
+    public void withdraw(int amount) {
+        withdraw(mMyNode.get(), amount);
+    }
+
+    public void deposit(Handle handle, int amount) {
+        lock(handle);
+        mAmount += amount;
+        unlock(handle);
+    }
+
+    public void withdraw(Handle handle, int amount) {
+        lock(handle);
+        mAmount -= amount;
+        unlock(handle);
+    }
+
+    public int getAmount() {
+        return mAmount;
+    }
+
+    /**
+     * Acquires the lock with a handle owned by the caller, which must be passed to
+     * {@link MCSLockBankAccount#unlock(Handle)} as well.
+     */
+    public void lock(Handle node) {
+        node.mLocked = true;
+
+        Handle predecessor = mTail.getAndSet(node);
+        if (predecessor != null) {
+            // The lock is being held (or waited for) by someone else. We must first let our predecessor know about us,
+            // otherwise it will never notify us when unlocking.
+            predecessor.mNext = node;
+            await(node);
+        }
+    }
+
+    /**
+     * Releases the lock acquired with the given handle.
+     */
+    public void unlock(Handle node) {
+        if (node.mNext == null) {
+            // No known successor. If we are still the tail, the queue becomes empty and we are done.
+            if (mTail.compareAndSet(node, null)) return;
+
+            // Otherwise, someone has just swapped itself into the tail but has not linked itself to our node yet. When
+            // threads park, there may be more threads than cores, and it may need our core to do so.
+            while (node.mNext == null) {
+                if (mSpinThenPark) Thread.yield();
+            }
+        }
+
+        Handle successor = node.mNext;
+        // Our successor no longer needs our node, it can be safely reused on our next lock.
+        node.mNext = null;
+        successor.mLocked = false;
+
+        if (mSpinThenPark) {
+            Thread waiter = successor.mWaiter;
+            if (waiter != null) LockSupport.unpark(waiter);
+        }
+    }
+
+    /**
+     * Waits for the predecessor to hand the lock over.
+     */
+    private void await(Handle node) {
+        int spins = 0;
+        int budget = mSpinThenPark ? mSpinBudget.get() : 0;
+
+        while (node.mLocked) {
+            if (mSpinThenPark && spins >= budget) {
+                park(node);
+            } else {
+                mSpinPolicy.spin(spins);
+            }
+            spins++;
+        }
+
+        if (mSpinThenPark) {
+            if (spins > budget) {
+                mSpinBudget.spinFailed();
+            } else {
+                mSpinBudget.spinSucceeded();
+            }
+        }
+    }
+
+    private void park(Handle node) {
+        // We must publish ourselves BEFORE checking the flag once more, otherwise our predecessor could unlock in
+        // between without noticing us and we would never be unparked. Spurious wake-ups are simply ignored.
+        node.mWaiter = Thread.currentThread();
+        if (node.mLocked) LockSupport.park(this);
+        node.mWaiter = null;
+    }
+
+    /**
+     * @return A new handle, to be used by a single thread at a time (with this or any other lock of this class).
+     */
+    public Handle newHandle() {
+        return new Handle();
+    }
+
+    /**
+     * A thread's queue node. A handle must not be used for two locks at the same time.
+     */
+    public static final class Handle {
+        // Flag set by the owner and cleared by its predecessor. Must be declared volatile.
+        private volatile boolean mLocked;
+        // Successor in the queue, written by the successor and read by the owner. Must be declared volatile.
+        private volatile Handle mNext;
+        // The owner, while parked waiting for the flag to be cleared. Must be declared volatile.
+        private volatile Thread mWaiter;
+
+        private Handle() {}
+    }
+}
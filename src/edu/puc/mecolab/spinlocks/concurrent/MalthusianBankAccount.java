@@ -0,0 +1,193 @@
+package edu.puc.mecolab.spinlocks.concurrent;
+
+import edu.puc.mecolab.spinlocks.Account;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Concurrency restriction ("Malthusian" locking) in front of any other lock based account. Past a certain number of
+ * contending threads, adding more threads to a lock only adds more spinning and cache traffic, but not more throughput.
+ * This account only lets at most {@link MalthusianBankAccount#mMaxActive} threads (the active circulating set) compete
+ * for the underlying account's lock at any time. Surplus threads are culled into a passive list where they park,
+ * leaving their cores to the threads that actually make progress (or to other programs).
+ *
+ * The passive list is an MCS queue of parked threads. Only its head waits for room in the active set, spinning for a
+ * little while and then parking until an active thread leaves. Threads arriving while there is room in the active set
+ * go in right away, even if there are passive threads: recently active threads are favored, since their data is still
+ * in cache. For long term fairness, about once every {@link MalthusianBankAccount#PROMOTION_PERIOD} operations, the head
+ * of the passive list is let in regardless of the size of the active set.
+ */
+public class MalthusianBankAccount extends Account {
+    private static final int DEFAULT_MAX_ACTIVE = 4;
+    private static final int PROMOTION_PERIOD = 1024;
+
+    private final Account mAccount;
+    private final int mMaxActive;
+
+    /**
+     * Number of threads in the active circulating set.
+     */
+    private AtomicInteger mActive;
+
+    /**
+     * Set by a leaving thread once in a while, so the head of the passive list is let in.
+     */
+    private volatile boolean mPromote;
+
+    private AtomicReference<PassiveNode> mPassiveTail;
+    private ThreadLocal<PassiveNode> mMyNode;
+
+    /**
+     * The head of the passive list, while parked waiting for room in the active set.
+     */
+    private volatile Thread mHeadWaiter;
+    private final SpinBudget mSpinBudget;
+
+    private AtomicLong mPassivations;
+    // Only written by the head of the passive list.
+    private long mPromotions;
+
+    public MalthusianBankAccount(Account account) {
+        this(account, DEFAULT_MAX_ACTIVE);
+    }
+
+    /**
+     * @param account The account (and underlying lock) whose concurrency is being restricted.
+     * @param maxActive The maximum number of threads allowed to compete for the underlying lock.
+     */
+    public MalthusianBankAccount(Account account, int maxActive) {
+        if (maxActive < 1) throw new IllegalArgumentException("At least one active thread is required");
+
+        mAccount = account;
+        mMaxActive = maxActive;
+
+        mActive = new AtomicInteger(0);
+        mPassiveTail = new AtomicReference<>(null);
+        mMyNode = ThreadLocal.withInitial(PassiveNode::new);
+        mSpinBudget = new SpinBudget();
+
+        mPassivations = new AtomicLong(0);
+    }
+
+    public void deposit(int amount) {
+        enter();
+        mAccount.deposit(amount);
+        leave();
+    }
+
+    public void withdraw(int amount) {
+        enter();
+        mAccount.withdraw(amount);
+        leave();
+    }
+
+    public int getAmount() {
+        return mAccount.getAmount();
+    }
+
+    @Override
+    public String getStatistics() {
+        String statistics = "Passivations: " + mPassivations.get() + ", promotions: " + mPromotions;
+        String accountStatistics = mAccount.getStatistics();
+        return accountStatistics == null ? statistics : statistics + "\n" + accountStatistics;
+    }
+
+    /**
+     * Joins the active circulating set, waiting in the passive list if it is full.
+     */
+    private void enter() {
+        if (tryEnter()) return;
+
+        mPassivations.incrementAndGet();
+
+        // Join the passive list. Passive threads other than the head park right away, they have a long wait ahead.
+        PassiveNode node = mMyNode.get();
+        node.mLocked = true;
+        PassiveNode predecessor = mPassiveTail.getAndSet(node);
+        if (predecessor != null) {
+            predecessor.mNext = node;
+            while (node.mLocked) {
+                LockSupport.park(this);
+            }
+        }
+
+        // We are now the head of the passive list.
+        waitForAdmission();
+
+        // Let the next passive thread become the head.
+        if (node.mNext == null) {
+            if (!mPassiveTail.compareAndSet(node, null)) {
+                // Someone has just swapped itself into the tail but has not linked itself to our node yet. Passive
+                // threads park, so there may be more threads than cores, and it may need our core to do so.
+                while (node.mNext == null) {
+                    Thread.yield();
+                }
+            }
+        }
+        PassiveNode next = node.mNext;
+        if (next != null) {
+            next.mLocked = false;
+            LockSupport.unpark(next.mThread);
+            node.mNext = null;
+        }
+    }
+
+    private void waitForAdmission() {
+        int spins = mSpinBudget.get();
+        for (int i = 0; i < spins; i++) {
+            if (tryEnter() || tryPromote()) {
+                mSpinBudget.spinSucceeded();
+                return;
+            }
+        }
+        mSpinBudget.spinFailed();
+
+        // Publish ourselves before checking again, so leaving threads cannot miss us.
+        mHeadWaiter = Thread.currentThread();
+        while (!tryEnter() && !tryPromote()) {
+            LockSupport.park(this);
+        }
+        mHeadWaiter = null;
+    }
+
+    private boolean tryEnter() {
+        int active = mActive.get();
+        while (active < mMaxActive) {
+            if (mActive.compareAndSet(active, active + 1)) return true;
+            active = mActive.get();
+        }
+        return false;
+    }
+
+    private boolean tryPromote() {
+        if (mPromote) {
+            mPromote = false;
+            mActive.incrementAndGet();
+            mPromotions++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Leaves the active circulating set, waking up the head of the passive list if needed.
+     */
+    private void leave() {
+        mActive.decrementAndGet();
+
+        if (ThreadLocalRandom.current().nextInt(PROMOTION_PERIOD) == 0) mPromote = true;
+
+        Thread headWaiter = mHeadWaiter;
+        if (headWaiter != null) LockSupport.unpark(headWaiter);
+    }
+
+    private static class PassiveNode {
+        private final Thread mThread = Thread.currentThread();
+        private volatile boolean mLocked;
+        private volatile PassiveNode mNext;
+    }
+}
@@ -5,6 +5,9 @@ import edu.puc.mecolab.spinlocks.Account;
 /**
  * Standard locking using monitors using Java's wait/notify mechanism. Should perform worse under multi-core architectures
  * than synchronized locks.
+ *
+ * Not suited to virtual threads before Java 24: a virtual thread inside a synchronized block, or waiting in wait(),
+ * pins its carrier thread, so a few waiting threads are enough to leave no carrier for the others.
  */
 public class MonitorBankAccount extends Account {
     private static final Object mMonitor = new Object();
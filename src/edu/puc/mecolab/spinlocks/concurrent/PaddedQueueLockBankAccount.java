@@ -2,32 +2,99 @@ package edu.puc.mecolab.spinlocks.concurrent;
 
 import edu.puc.mecolab.spinlocks.Account;
 
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
 
 /**
- * Similar implementation to {@link QueueLockBankAccount} but with an added padding between flags in the shared array
- * to prevent the phenomenon of "false cache invalidation".
+ * Similar implementation to {@link QueueLockBankAccount} but with an added padding between slots in the shared array
+ * to prevent the phenomenon of "false cache invalidation". Slots are a cache line apart (see {@link CacheLine}). It
+ * supports the same spin-then-park mode and abortable {@link PaddedQueueLockBankAccount#tryLock(long, TimeUnit)}.
  */
 public class PaddedQueueLockBankAccount extends Account {
-    private static final int CAPACITY = 20;
-    private static final int STEP = 8;
-    private static final int ACTUAL_CAPACITY = CAPACITY * STEP;
+    private static final int DEFAULT_MAX_THREADS = 64;
 
+    private static final long TICKET_MASK = 0xFFFFFFFFL;
+    private static final long ABORTED = 1L << 32;
+
+    /**
+     * Distance between two slots in the shared array.
+     */
+    private static final int STEP = CacheLine.LONGS;
+
+    // Shared variables used for spinning. Note that declaring an array volatile does not make its elements volatile,
+    // an atomic array is used instead. Each slot holds the last ticket granted there (with the ABORTED bit if its
+    // thread gave up waiting). Slot 0 starts with ticket 0 granted. Slot i is at (i + 1) * STEP.
+    private AtomicLongArray mSlots;
+    private final int mMask;
     private int mAmount;
+    private AtomicInteger mNextTicket;
 
-    // Shared variables used for spinning, must be declared volatile
-    private volatile boolean[] mFlags;
+    /**
+     * The ticket of the thread currently holding the lock. Only accessed by the lock holder.
+     */
+    private int mOwnerTicket;
 
-    private AtomicInteger mAtomicInteger;
-    private ThreadLocal<Integer> mSlot;
+    private final SpinPolicy mSpinPolicy;
+    private final boolean mSpinThenPark;
+    private final SpinBudget mSpinBudget;
+    private AtomicReferenceArray<Thread> mWaiters;
 
     public PaddedQueueLockBankAccount(int amount) {
+        this(amount, false);
+    }
+
+    /**
+     * @param amount The initial amount.
+     * @param spinThenPark Whether waiting threads should park after spinning for a while.
+     */
+    public PaddedQueueLockBankAccount(int amount, boolean spinThenPark) {
+        this(amount, Math.max(DEFAULT_MAX_THREADS, Runtime.getRuntime().availableProcessors()), spinThenPark);
+    }
+
+    /**
+     * @param amount The initial amount.
+     * @param maxThreads The expected maximum number of threads, the number of slots is the next power of two.
+     * @param spinThenPark Whether waiting threads should park after spinning for a while.
+     */
+    public PaddedQueueLockBankAccount(int amount, int maxThreads, boolean spinThenPark) {
+        this(amount, maxThreads, spinThenPark, SpinPolicy.BUSY);
+    }
+
+    /**
+     * @param amount The initial amount.
+     * @param spinPolicy What waiting threads do each time they find their slot not granted yet.
+     */
+    public PaddedQueueLockBankAccount(int amount, SpinPolicy spinPolicy) {
+        this(amount, Math.max(DEFAULT_MAX_THREADS, Runtime.getRuntime().availableProcessors()), false, spinPolicy);
+    }
+
+    /**
+     * @param amount The initial amount.
+     * @param maxThreads The expected maximum number of threads, the number of slots is the next power of two.
+     * @param spinThenPark Whether waiting threads should park after spinning for a while.
+     * @param spinPolicy What waiting threads do each time they find their slot not granted yet (while spinning).
+     */
+    public PaddedQueueLockBankAccount(int amount, int maxThreads, boolean spinThenPark, SpinPolicy spinPolicy) {
+        if (maxThreads < 1 || maxThreads > 1 << 30) throw new IllegalArgumentException("Invalid number of threads");
+
+        int capacity = maxThreads == 1 ? 1 : Integer.highestOneBit(maxThreads - 1) << 1;
         mAmount = amount;
-        mFlags = new boolean[ACTUAL_CAPACITY];
-        mFlags[0] = true;
-        mAtomicInteger = new AtomicInteger(0);
+        // Padding is added at both ends, so that no slot shares its line with other objects.
+        mSlots = new AtomicLongArray((capacity + 2) * STEP);
+        mMask = capacity - 1;
+        // Every other slot starts as if granted one round before its first ticket.
+        for (int i = 1; i < capacity; i++) {
+            mSlots.set(slot(i), (i - capacity) & TICKET_MASK);
+        }
+        mNextTicket = new AtomicInteger(0);
 
-        mSlot = ThreadLocal.withInitial(() -> 0);
+        mSpinPolicy = spinPolicy;
+        mSpinThenPark = spinThenPark;
+        mSpinBudget = new SpinBudget();
+        mWaiters = new AtomicReferenceArray<>(capacity);
     }
 
     public void deposit(int amount) {
@@ -47,15 +114,136 @@ public class PaddedQueueLockBankAccount extends Account {
     }
 
     private void lock() {
-        // TODO: check for overflowing errors
-        int slot =  mAtomicInteger.getAndAdd(STEP) % (ACTUAL_CAPACITY);
-        mSlot.set(slot);
-        while (!mFlags[slot]) {}
+        int ticket = mNextTicket.getAndIncrement();
+        int slot = slot(ticket);
+
+        if (mSpinThenPark) {
+            spinThenPark(slot, ticket);
+        } else {
+            for (int attempt = 0; !isGranted(mSlots.get(slot), ticket); attempt++) {
+                mSpinPolicy.spin(attempt);
+            }
+        }
+        mOwnerTicket = ticket;
+    }
+
+    /**
+     * Attempts to acquire the lock, giving up once the timeout has elapsed.
+     *
+     * @return true if the lock was successfully acquired, false otherwise.
+     */
+    public boolean tryLock(long time, TimeUnit unit) {
+        long deadline = System.nanoTime() + unit.toNanos(time);
+
+        int ticket = mNextTicket.getAndIncrement();
+        int slot = slot(ticket);
+        long granted = ticket & TICKET_MASK;
+        int spins = 0;
+        int budget = mSpinThenPark ? mSpinBudget.get() : 0;
+
+        while (true) {
+            long value = mSlots.get(slot);
+            if (isGranted(value, ticket)) break;
+
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                // We may only give up once the slot is done with the previous round (the ticket a round ahead of ours
+                // was granted or gave up), otherwise the thread holding that ticket would take our mark as its grant.
+                // Until then, we keep waiting. If the lock is handed to us right as we give up, the CAS fails and we
+                // check the slot again.
+                if ((int) value == ticket - (mMask + 1)) {
+                    if (mSlots.compareAndSet(slot, value, granted | ABORTED)) return false;
+                } else {
+                    mSpinPolicy.spin(spins++);
+                }
+                continue;
+            }
+
+            if (mSpinThenPark && spins >= budget) {
+                park(slot, ticket, remaining);
+            } else {
+                mSpinPolicy.spin(spins);
+            }
+            spins++;
+        }
+
+        mOwnerTicket = ticket;
+        return true;
+    }
+
+    private void spinThenPark(int slot, int ticket) {
+        int spins = mSpinBudget.get();
+        for (int i = 0; i < spins; i++) {
+            if (isGranted(mSlots.get(slot), ticket)) {
+                mSpinBudget.spinSucceeded();
+                return;
+            }
+            mSpinPolicy.spin(i);
+        }
+
+        while (!isGranted(mSlots.get(slot), ticket)) {
+            park(slot, ticket, 0);
+        }
+        mSpinBudget.spinFailed();
+    }
+
+    /**
+     * Parks until the ticket is granted, or for at most the given time (if not 0).
+     */
+    private void park(int slot, int ticket, long nanos) {
+        // If another thread sharing the slot is already parked there, we keep spinning instead. Otherwise, we publish
+        // ourselves before checking the slot once more, so the thread ahead of us cannot miss us.
+        Thread me = Thread.currentThread();
+        if (!mWaiters.compareAndSet(slot / STEP - 1, null, me)) return;
+
+        if (!isGranted(mSlots.get(slot), ticket)) {
+            if (nanos > 0) {
+                LockSupport.parkNanos(this, nanos);
+            } else {
+                LockSupport.park(this);
+            }
+        }
+        mWaiters.compareAndSet(slot / STEP - 1, me, null);
+    }
+
+    /**
+     * @return true if the slot shows that the lock was handed to the ticket. The slot may already be at a later round:
+     * once the ticket is granted, the thread a round behind it may give up and replace the grant with its mark.
+     */
+    private static boolean isGranted(long value, int ticket) {
+        return (int) value - ticket >= 0;
+    }
+
+    /**
+     * Releases the lock.
+     */
+    public void unlock() {
+        int ticket = mOwnerTicket + 1;
+        int slot;
+
+        while (true) {
+            slot = slot(ticket);
+            long value = mSlots.get(slot);
+
+            // The thread holding this ticket gave up: the slot holds its mark, or a later round's (a thread may only
+            // mark a slot once the previous round is over, and only we grant tickets). On to the next one.
+            if ((int) value - ticket >= 0) {
+                ticket++;
+                continue;
+            }
+
+            // The slot is still at the previous round, which is over since we hold a later ticket. Fails only if the
+            // thread holding this ticket is giving up now.
+            if (mSlots.compareAndSet(slot, value, ticket & TICKET_MASK)) break;
+        }
+
+        if (mSpinThenPark) {
+            Thread waiter = mWaiters.get(slot / STEP - 1);
+            if (waiter != null) LockSupport.unpark(waiter);
+        }
     }
 
-    private void unlock() {
-        int slot = mSlot.get();
-        mFlags[slot] = false;
-        mFlags[(slot + STEP) % (ACTUAL_CAPACITY)] = true;
+    private int slot(int ticket) {
+        return ((ticket & mMask) + 1) * STEP;
     }
 }
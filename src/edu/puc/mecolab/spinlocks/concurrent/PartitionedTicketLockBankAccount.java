@@ -0,0 +1,118 @@
+package edu.puc.mecolab.spinlocks.concurrent;
+
+import edu.puc.mecolab.spinlocks.Account;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Variation of {@link TicketLockBankAccount} in which the "now serving" counter is split in
+ * {@link PartitionedTicketLockBankAccount#PARTITIONS} grant variables, each one on its own cache line. A thread holding
+ * ticket t waits on grant t % PARTITIONS until it equals t, so consecutive tickets spin on different cache lines, just
+ * like in {@link PaddedQueueLockBankAccount}. However, unlike the Anderson lock, more threads than partitions can wait
+ * at the same time: they simply wait for different values on the same grant variable.
+ *
+ * Waiting threads back off proportionally to the minimum number of threads that are ahead of them in the queue.
+ */
+public class PartitionedTicketLockBankAccount extends Account {
+    /**
+     * Number of grant variables. Must be a power of 2 so that partition indexes remain consistent when tickets overflow.
+     */
+    private static final int PARTITIONS = 8;
+
+    /**
+     * Distance between two grant variables in the shared array.
+     */
+    private static final int STEP = CacheLine.INTS;
+
+    private static final long BACKOFF_NANOS = 100;
+
+    private int mAmount;
+
+    private AtomicInteger mNextTicket;
+
+    /**
+     * Grant variables, only written by the lock holder. A grant equal to t means the thread holding ticket t may enter.
+     */
+    private AtomicIntegerArray mGrants;
+
+    /**
+     * Ticket of the current lock holder. Only accessed by the lock holder, no further synchronization is needed.
+     */
+    private int mOwnerTicket;
+
+    private final SpinPolicy mSpinPolicy;
+
+    public PartitionedTicketLockBankAccount(int amount) {
+        this(amount, SpinPolicy.BUSY);
+    }
+
+    /**
+     * @param amount The initial amount.
+     * @param spinPolicy What waiting threads do each time they find the lock busy, and while backing off.
+     */
+    public PartitionedTicketLockBankAccount(int amount, SpinPolicy spinPolicy) {
+        mAmount = amount;
+        mSpinPolicy = spinPolicy;
+        mNextTicket = new AtomicInteger(0);
+
+        // Grant i initially holds i - PARTITIONS, the previous ticket that maps to it. Only ticket 0 is granted.
+        // Padding is added at both ends, so that no grant shares its line with other objects.
+        mGrants = new AtomicIntegerArray((PARTITIONS + 1) * STEP);
+        for (int i = 0; i < PARTITIONS; i++) {
+            mGrants.set(index(i), i - PARTITIONS);
+        }
+        mGrants.set(index(0), 0);
+    }
+
+    public void deposit(int amount) {
+        lock();
+        mAmount += amount;
+        unlock();
+    }
+
+    public void withdraw(int amount) {
+        lock();
+        mAmount -= amount;
+        unlock();
+    }
+
+    public int getAmount() {
+        return mAmount;
+    }
+
+    private void lock() {
+        int ticket = mNextTicket.getAndIncrement();
+        int index = index(ticket);
+
+        int attempt = 0;
+        while (true) {
+            int grant = mGrants.get(index);
+            if (grant == ticket) {
+                mOwnerTicket = ticket;
+                return;
+            }
+
+            // The next ticket of this partition is grant + PARTITIONS, so at least this many threads are ahead of us.
+            // The backoff goes through the spin policy too, so that a parking policy releases the core while waiting.
+            int distance = ticket - grant - PARTITIONS;
+            if (distance > 0) {
+                long deadline = System.nanoTime() + distance * BACKOFF_NANOS;
+                while (System.nanoTime() - deadline < 0) {
+                    mSpinPolicy.spin(attempt++);
+                }
+            } else {
+                mSpinPolicy.spin(attempt++);
+            }
+        }
+    }
+
+    private void unlock() {
+        int next = mOwnerTicket + 1;
+        mGrants.set(index(next), next);
+    }
+
+    private static int index(int ticket) {
+        return ((ticket & (PARTITIONS - 1)) + 1) * STEP;
+    }
+}
@@ -4,6 +4,9 @@ import edu.puc.mecolab.spinlocks.Account;
 
 /**
  * Standard locking using synchronized blocks.
+ *
+ * On virtual threads (before Java 24), a thread blocked on the monitor pins its carrier thread instead of releasing it,
+ * so with thousands of virtual threads {@link PrimitiveLockBankAccount} scales much better.
  */
 public class PrimitiveSynchronizedBankAccount extends Account {
     private static final Object sLock = new Object();
@@ -0,0 +1,234 @@
+package edu.puc.mecolab.spinlocks.concurrent;
+
+import edu.puc.mecolab.spinlocks.Account;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Queue lock in which each operation has a priority, from {@link PriorityLockBankAccount#HIGHEST} to
+ * {@link PriorityLockBankAccount#LOWEST}, or a deadline (which is mapped to a priority by how close it is). Waiting
+ * threads are kept in one FIFO queue per priority level, and the thread releasing the lock hands it directly to the
+ * first thread of the most urgent non-empty level. Operations without a priority get the lowest one.
+ *
+ * To prevent starvation, the first thread of each level counts the times the lock has been handed to someone else while
+ * it was waiting there. Once it has been passed over {@link PriorityLockBankAccount#MAX_BYPASSES} times, it gets the
+ * lock next regardless of its level. Picking the next thread only looks at the first thread of each level, so handing
+ * the lock over has a bounded cost however many threads are waiting.
+ *
+ * The queues are guarded by a small {@link TTASLockBankAccount TTAS} lock, held for a few instructions at a time.
+ * Waiting threads spin for an adaptive amount of iterations (see {@link SpinBudget}) and then park until they are
+ * handed the lock.
+ */
+public class PriorityLockBankAccount extends Account {
+    public static final int LEVELS = 4;
+    public static final int HIGHEST = 0;
+    public static final int LOWEST = LEVELS - 1;
+
+    /**
+     * Time left until a deadline (in nanoseconds) under which the deadline maps to each level, but the lowest one.
+     */
+    private static final long[] SLACK = {100000, 1000000, 10000000};
+
+    /**
+     * Times the first thread of a level may be passed over before it gets the lock regardless of its level.
+     */
+    private static final int MAX_BYPASSES = 16;
+
+    private int mAmount;
+
+    private AtomicBoolean mGuard;
+
+    // The following variables are only accessed while holding mGuard.
+    private boolean mLocked;
+    private final Waiter[] mHeads;
+    private final Waiter[] mTails;
+    private final long[] mHandoffs;
+    private long mAgedHandoffs;
+
+    private ThreadLocal<Waiter> mWaiter;
+    private final SpinBudget mSpinBudget;
+
+    public PriorityLockBankAccount(int amount) {
+        mAmount = amount;
+        mGuard = new AtomicBoolean(false);
+
+        mHeads = new Waiter[LEVELS];
+        mTails = new Waiter[LEVELS];
+        mHandoffs = new long[LEVELS];
+
+        mWaiter = ThreadLocal.withInitial(Waiter::new);
+        mSpinBudget = new SpinBudget();
+    }
+
+    public void deposit(int amount) {
+        deposit(amount, LOWEST);
+    }
+
+    public void withdraw(int amount) {
+        withdraw(amount, LOWEST);
+    }
+
+    public void deposit(int amount, int priority) {
+        lock(priority);
+        mAmount += amount;
+        unlock();
+    }
+
+    public void withdraw(int amount, int priority) {
+        lock(priority);
+        mAmount -= amount;
+        unlock();
+    }
+
+    /**
+     * @param deadline The time the operation should be done by, as given by {@link System#nanoTime()}.
+     */
+    public void depositBefore(int amount, long deadline) {
+        deposit(amount, priorityFor(deadline));
+    }
+
+    /**
+     * @param deadline The time the operation should be done by, as given by {@link System#nanoTime()}.
+     */
+    public void withdrawBefore(int amount, long deadline) {
+        withdraw(amount, priorityFor(deadline));
+    }
+
+    public int getAmount() {
+        return mAmount;
+    }
+
+    @Override
+    public String getStatistics() {
+        return "Handoffs by priority: " + Arrays.toString(mHandoffs) + " (" + mAgedHandoffs + " to passed over threads)";
+    }
+
+    /**
+     * @return The priority for a deadline, as given by {@link System#nanoTime()}. Deadlines that are already past get
+     * the highest priority.
+     */
+    public static int priorityFor(long deadline) {
+        long slack = deadline - System.nanoTime();
+        for (int i = 0; i < SLACK.length; i++) {
+            if (slack < SLACK[i]) return i;
+        }
+        return LOWEST;
+    }
+
+    private void lock(int priority) {
+        if (priority < HIGHEST || priority > LOWEST) throw new IllegalArgumentException("Invalid priority");
+
+        lockGuard();
+        if (!mLocked) {
+            mLocked = true;
+            mGuard.set(false);
+            return;
+        }
+
+        // Our node is published by releasing the guard.
+        Waiter waiter = mWaiter.get();
+        waiter.mGranted = false;
+        waiter.mBypasses = 0;
+        waiter.mNext = null;
+        if (mTails[priority] == null) {
+            mHeads[priority] = waiter;
+        } else {
+            mTails[priority].mNext = waiter;
+        }
+        mTails[priority] = waiter;
+        mGuard.set(false);
+
+        await(waiter);
+    }
+
+    private void unlock() {
+        lockGuard();
+        Waiter next = dequeue();
+        // If someone is waiting, the lock stays locked: it is handed over directly.
+        if (next == null) mLocked = false;
+        mGuard.set(false);
+
+        if (next != null) {
+            next.mGranted = true;
+            if (next.mParked) LockSupport.unpark(next.mThread);
+        }
+    }
+
+    /**
+     * Removes the thread the lock must be handed to from its queue. Must be called while holding mGuard.
+     *
+     * @return The next lock holder, or null if no thread is waiting.
+     */
+    private Waiter dequeue() {
+        int level = -1;
+        boolean aged = false;
+        for (int i = 0; i < LEVELS; i++) {
+            Waiter head = mHeads[i];
+            if (head == null) continue;
+
+            if (level < 0) level = i;
+            if (head.mBypasses >= MAX_BYPASSES) {
+                level = i;
+                aged = true;
+                break;
+            }
+        }
+        if (level < 0) return null;
+
+        Waiter next = mHeads[level];
+        mHeads[level] = next.mNext;
+        if (mHeads[level] == null) mTails[level] = null;
+
+        for (int i = 0; i < LEVELS; i++) {
+            if (i != level && mHeads[i] != null) mHeads[i].mBypasses++;
+        }
+
+        mHandoffs[level]++;
+        if (aged) mAgedHandoffs++;
+        return next;
+    }
+
+    private void await(Waiter waiter) {
+        int spins = mSpinBudget.get();
+        for (int i = 0; i < spins; i++) {
+            if (waiter.mGranted) {
+                mSpinBudget.spinSucceeded();
+                return;
+            }
+            SpinHint.onSpinWait();
+        }
+
+        // We must publish that we are parking BEFORE checking the flag once more, otherwise the lock could be handed to
+        // us in between without us being unparked. Spurious wake-ups are simply ignored.
+        waiter.mParked = true;
+        while (!waiter.mGranted) {
+            LockSupport.park(this);
+        }
+        waiter.mParked = false;
+        mSpinBudget.spinFailed();
+    }
+
+    private void lockGuard() {
+        while (true) {
+            while (mGuard.get()) {
+                SpinHint.onSpinWait();
+            }
+            if (!mGuard.getAndSet(true)) return;
+        }
+    }
+
+    private static class Waiter {
+        private final Thread mThread = Thread.currentThread();
+
+        // Only accessed while holding mGuard.
+        private Waiter mNext;
+        private int mBypasses;
+
+        // Set by the thread handing over the lock. Must be declared volatile.
+        private volatile boolean mGranted;
+        // Set by the owner while it is (about to be) parked. Must be declared volatile.
+        private volatile boolean mParked;
+    }
+}
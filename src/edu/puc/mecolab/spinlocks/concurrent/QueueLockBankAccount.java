@@ -2,29 +2,108 @@ package edu.puc.mecolab.spinlocks.concurrent;
 
 import edu.puc.mecolab.spinlocks.Account;
 
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Standard lock queueing algorithm for providing fair, starvation-free, access to the critical section through spinning.
- * Critical section access is managed through a shared array of access flags. Maximum number of flags must be known in
- * advance.
+ * Critical section access is managed through a shared array of slots. Each thread takes a ticket, which maps to a slot,
+ * and spins on that slot until its ticket is written there by the thread ahead of it.
+ *
+ * Since slots hold whole ticket values (rather than a flag), a slot can never be mistaken for granted to the wrong
+ * thread, so tickets may overflow freely and slots are picked with a simple mask (the number of slots is a power of two).
+ * The number of slots should be at least the number of threads, so that each waiting thread spins on a slot of its own.
+ * When there are more threads, several of them share a slot, which is slower, and may delay timeouts (see below).
+ *
+ * Optionally, threads may spin only for an adaptive amount of iterations (see {@link SpinBudget}) and then park until
+ * the thread ahead of them unparks them.
+ *
+ * Threads may also give up waiting through {@link QueueLockBankAccount#tryLock(long, TimeUnit)}, by marking their slot
+ * as aborted for their ticket. A thread may only do so once its slot is done with the previous round (the ticket a
+ * round ahead of it was granted or gave up), so when threads share a slot, a thread may have to wait past its timeout.
+ * Its mark may replace a grant whose thread has not seen it yet, so a thread takes any later round in its slot as its
+ * grant. The thread releasing the lock skips tickets whose slot holds their mark, or has already moved on to a later
+ * round, and hands the lock to the first ticket whose thread is still waiting (or yet to come).
  */
 public class QueueLockBankAccount extends Account {
-    private static final int CAPACITY = 20;
-    private volatile boolean[] mFlags;
+    private static final int DEFAULT_MAX_THREADS = 64;
+
+    private static final long TICKET_MASK = 0xFFFFFFFFL;
+    private static final long ABORTED = 1L << 32;
+
+    // Shared variables used for spinning. Note that declaring an array volatile does not make its elements volatile,
+    // an atomic array is used instead. Each slot holds the last ticket granted there (with the ABORTED bit if its
+    // thread gave up waiting). Slot 0 starts with ticket 0 granted.
+    private AtomicLongArray mSlots;
+    private final int mMask;
     private int mAmount;
-    private AtomicInteger mAtomicInteger;
+    private AtomicInteger mNextTicket;
+
+    /**
+     * The ticket of the thread currently holding the lock. Only accessed by the lock holder.
+     */
+    private int mOwnerTicket;
 
-    private ThreadLocal<Integer> mSlot;
+    private final SpinPolicy mSpinPolicy;
+    private final boolean mSpinThenPark;
+    private final SpinBudget mSpinBudget;
+    private AtomicReferenceArray<Thread> mWaiters;
 
     public QueueLockBankAccount(int amount) {
-        mAmount = amount;
-        mFlags = new boolean[CAPACITY];
-        mFlags[0] = true;
-        mAtomicInteger = new AtomicInteger(0);
+        this(amount, false);
+    }
 
-        mSlot = ThreadLocal.withInitial(() -> 0);
+    /**
+     * @param amount The initial amount.
+     * @param spinThenPark Whether waiting threads should park after spinning for a while.
+     */
+    public QueueLockBankAccount(int amount, boolean spinThenPark) {
+        this(amount, Math.max(DEFAULT_MAX_THREADS, Runtime.getRuntime().availableProcessors()), spinThenPark);
+    }
+
+    /**
+     * @param amount The initial amount.
+     * @param maxThreads The expected maximum number of threads, the number of slots is the next power of two.
+     * @param spinThenPark Whether waiting threads should park after spinning for a while.
+     */
+    public QueueLockBankAccount(int amount, int maxThreads, boolean spinThenPark) {
+        this(amount, maxThreads, spinThenPark, SpinPolicy.BUSY);
+    }
 
+    /**
+     * @param amount The initial amount.
+     * @param spinPolicy What waiting threads do each time they find their slot not granted yet.
+     */
+    public QueueLockBankAccount(int amount, SpinPolicy spinPolicy) {
+        this(amount, Math.max(DEFAULT_MAX_THREADS, Runtime.getRuntime().availableProcessors()), false, spinPolicy);
+    }
+
+    /**
+     * @param amount The initial amount.
+     * @param maxThreads The expected maximum number of threads, the number of slots is the next power of two.
+     * @param spinThenPark Whether waiting threads should park after spinning for a while.
+     * @param spinPolicy What waiting threads do each time they find their slot not granted yet (while spinning).
+     */
+    public QueueLockBankAccount(int amount, int maxThreads, boolean spinThenPark, SpinPolicy spinPolicy) {
+        if (maxThreads < 1 || maxThreads > 1 << 30) throw new IllegalArgumentException("Invalid number of threads");
+
+        int capacity = maxThreads == 1 ? 1 : Integer.highestOneBit(maxThreads - 1) << 1;
+        mAmount = amount;
+        mSlots = new AtomicLongArray(capacity);
+        mMask = capacity - 1;
+        // Every other slot starts as if granted one round before its first ticket.
+        for (int i = 1; i < capacity; i++) {
+            mSlots.set(i, (i - capacity) & TICKET_MASK);
+        }
+        mNextTicket = new AtomicInteger(0);
+
+        mSpinPolicy = spinPolicy;
+        mSpinThenPark = spinThenPark;
+        mSpinBudget = new SpinBudget();
+        mWaiters = new AtomicReferenceArray<>(capacity);
     }
 
     public void deposit(int amount) {
@@ -44,15 +123,132 @@ public class QueueLockBankAccount extends Account {
     }
 
     private void lock() {
-        // TODO: check for overflowing errors
-        int slot = mAtomicInteger.getAndIncrement() % CAPACITY;
-        mSlot.set(slot);
-        while (!mFlags[slot]) {}
+        int ticket = mNextTicket.getAndIncrement();
+        int slot = ticket & mMask;
+
+        if (mSpinThenPark) {
+            spinThenPark(slot, ticket);
+        } else {
+            for (int attempt = 0; !isGranted(mSlots.get(slot), ticket); attempt++) {
+                mSpinPolicy.spin(attempt);
+            }
+        }
+        mOwnerTicket = ticket;
     }
 
-    private void unlock() {
-        int slot = mSlot.get();
-        mFlags[slot] = false;
-        mFlags[(slot + 1) % CAPACITY] = true;
+    /**
+     * Attempts to acquire the lock, giving up once the timeout has elapsed.
+     *
+     * @return true if the lock was successfully acquired, false otherwise.
+     */
+    public boolean tryLock(long time, TimeUnit unit) {
+        long deadline = System.nanoTime() + unit.toNanos(time);
+
+        int ticket = mNextTicket.getAndIncrement();
+        int slot = ticket & mMask;
+        long granted = ticket & TICKET_MASK;
+        int spins = 0;
+        int budget = mSpinThenPark ? mSpinBudget.get() : 0;
+
+        while (true) {
+            long value = mSlots.get(slot);
+            if (isGranted(value, ticket)) break;
+
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                // We may only give up once the slot is done with the previous round (the ticket a round ahead of ours
+                // was granted or gave up), otherwise the thread holding that ticket would take our mark as its grant.
+                // Until then, we keep waiting. If the lock is handed to us right as we give up, the CAS fails and we
+                // check the slot again.
+                if ((int) value == ticket - (mMask + 1)) {
+                    if (mSlots.compareAndSet(slot, value, granted | ABORTED)) return false;
+                } else {
+                    mSpinPolicy.spin(spins++);
+                }
+                continue;
+            }
+
+            if (mSpinThenPark && spins >= budget) {
+                park(slot, ticket, remaining);
+            } else {
+                mSpinPolicy.spin(spins);
+            }
+            spins++;
+        }
+
+        mOwnerTicket = ticket;
+        return true;
+    }
+
+    private void spinThenPark(int slot, int ticket) {
+        int spins = mSpinBudget.get();
+        for (int i = 0; i < spins; i++) {
+            if (isGranted(mSlots.get(slot), ticket)) {
+                mSpinBudget.spinSucceeded();
+                return;
+            }
+            mSpinPolicy.spin(i);
+        }
+
+        while (!isGranted(mSlots.get(slot), ticket)) {
+            park(slot, ticket, 0);
+        }
+        mSpinBudget.spinFailed();
+    }
+
+    /**
+     * Parks until the ticket is granted, or for at most the given time (if not 0).
+     */
+    private void park(int slot, int ticket, long nanos) {
+        // If another thread sharing the slot is already parked there, we keep spinning instead. Otherwise, we publish
+        // ourselves before checking the slot once more, so the thread ahead of us cannot miss us.
+        Thread me = Thread.currentThread();
+        if (!mWaiters.compareAndSet(slot, null, me)) return;
+
+        if (!isGranted(mSlots.get(slot), ticket)) {
+            if (nanos > 0) {
+                LockSupport.parkNanos(this, nanos);
+            } else {
+                LockSupport.park(this);
+            }
+        }
+        mWaiters.compareAndSet(slot, me, null);
+    }
+
+    /**
+     * @return true if the slot shows that the lock was handed to the ticket. The slot may already be at a later round:
+     * once the ticket is granted, the thread a round behind it may give up and replace the grant with its mark.
+     */
+    private static boolean isGranted(long value, int ticket) {
+        return (int) value - ticket >= 0;
+    }
+
+    /**
+     * Releases the lock.
+     */
+    public void unlock() {
+        int ticket = mOwnerTicket + 1;
+        int slot;
+
+        while (true) {
+            slot = ticket & mMask;
+            long value = mSlots.get(slot);
+
+            // The thread holding this ticket gave up: the slot holds its mark, or a later round's (a thread may only
+            // mark a slot once the previous round is over, and only we grant tickets). On to the next one.
+            if ((int) value - ticket >= 0) {
+                ticket++;
+                continue;
+            }
+
+            // The slot is still at the previous round, which is over since we hold a later ticket. Fails only if the
+            // thread holding this ticket is giving up now.
+            if (mSlots.compareAndSet(slot, value, ticket & TICKET_MASK)) break;
+        }
+
+        if (mSpinThenPark) {
+            Thread waiter = mWaiters.get(slot);
+            if (waiter != null) LockSupport.unpark(waiter);
+        }
     }
 }
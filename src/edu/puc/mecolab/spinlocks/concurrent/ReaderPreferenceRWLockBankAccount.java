@@ -0,0 +1,80 @@
+package edu.puc.mecolab.spinlocks.concurrent;
+
+import edu.puc.mecolab.spinlocks.Account;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reader-writer spin lock in which balance reads ({@link Account#getAmount()}) may run concurrently with each other,
+ * while deposits and withdrawals remain exclusive. The whole lock state is kept in a single counter: the lowest bit is
+ * set while a writer holds the lock, and the remaining bits count the readers that are holding (or waiting for) it.
+ *
+ * Readers are preferred: a reader announces itself right away and only waits for an active writer to finish, while a
+ * writer may only enter once there are no readers at all. Under a steady stream of readers, writers may starve.
+ */
+public class ReaderPreferenceRWLockBankAccount extends Account {
+    private static final int WRITER = 1;
+    private static final int READER = 2;
+
+    private int mAmount;
+
+    private AtomicInteger mState;
+
+    private final SpinPolicy mSpinPolicy;
+
+    public ReaderPreferenceRWLockBankAccount(int amount) {
+        this(amount, SpinPolicy.BUSY);
+    }
+
+    /**
+     * @param amount The initial amount.
+     * @param spinPolicy What waiting readers and writers do each time they find the lock busy.
+     */
+    public ReaderPreferenceRWLockBankAccount(int amount, SpinPolicy spinPolicy) {
+        mAmount = amount;
+        mState = new AtomicInteger(0);
+        mSpinPolicy = spinPolicy;
+    }
+
+    public void deposit(int amount) {
+        writeLock();
+        mAmount += amount;
+        writeUnlock();
+    }
+
+    public void withdraw(int amount) {
+        writeLock();
+        mAmount -= amount;
+        writeUnlock();
+    }
+
+    public int getAmount() {
+        readLock();
+        int amount = mAmount;
+        readUnlock();
+        return amount;
+    }
+
+    private void readLock() {
+        mState.getAndAdd(READER);
+        for (int attempt = 0; (mState.get() & WRITER) != 0; attempt++) {
+            mSpinPolicy.spin(attempt);
+        }
+    }
+
+    private void readUnlock() {
+        mState.getAndAdd(-READER);
+    }
+
+    private void writeLock() {
+        // TTAS: only attempt the CAS once there are neither readers nor a writer.
+        for (int attempt = 0; mState.get() != 0 || !mState.compareAndSet(0, WRITER); attempt++) {
+            mSpinPolicy.spin(attempt);
+        }
+    }
+
+    private void writeUnlock() {
+        // Readers may have announced themselves in the meantime, so we cannot simply set the state to 0.
+        mState.getAndAdd(-WRITER);
+    }
+}
@@ -0,0 +1,115 @@
+package edu.puc.mecolab.spinlocks.concurrent;
+
+import edu.puc.mecolab.spinlocks.Account;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Reader-writer spin lock in which readers do not all update the same counter. In both
+ * {@link ReaderPreferenceRWLockBankAccount} and {@link WriterPreferenceRWLockBankAccount}, concurrent readers still
+ * fight over a single cache line, so reads do not really scale with the number of cores.
+ *
+ * Here, the reader count (the "reader indicator") is split in several counters, each one on its own cache line, and
+ * each reader only updates the counter its thread maps to. A writer first takes the writer flag (through TTAS, which
+ * also serializes writers), which keeps new readers out, and then waits for every counter to drop to zero. A reader
+ * announces itself and then checks the writer flag; if it is set, it withdraws and waits for the writer to be done.
+ * Writers are thus preferred, and readers may starve under a steady stream of writers.
+ */
+public class ScalableReaderRWLockBankAccount extends Account {
+    /**
+     * Number of reader counters. Must be a power of 2.
+     */
+    private static final int SLOTS = Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1);
+
+    /**
+     * Distance between two counters in the shared array.
+     */
+    private static final int STEP = CacheLine.INTS;
+
+    private int mAmount;
+
+    private AtomicBoolean mWriter;
+    private AtomicIntegerArray mReaders;
+
+    private final SpinPolicy mSpinPolicy;
+
+    public ScalableReaderRWLockBankAccount(int amount) {
+        this(amount, SpinPolicy.BUSY);
+    }
+
+    /**
+     * @param amount The initial amount.
+     * @param spinPolicy What waiting readers and writers do each time they find the lock busy.
+     */
+    public ScalableReaderRWLockBankAccount(int amount, SpinPolicy spinPolicy) {
+        mAmount = amount;
+        mSpinPolicy = spinPolicy;
+        mWriter = new AtomicBoolean(false);
+        // Padding is added at both ends, so that no counter shares its line with other objects.
+        mReaders = new AtomicIntegerArray((SLOTS + 1) * STEP);
+    }
+
+    public void deposit(int amount) {
+        writeLock();
+        mAmount += amount;
+        writeUnlock();
+    }
+
+    public void withdraw(int amount) {
+        writeLock();
+        mAmount -= amount;
+        writeUnlock();
+    }
+
+    public int getAmount() {
+        int slot = slot();
+        readLock(slot);
+        int amount = mAmount;
+        readUnlock(slot);
+        return amount;
+    }
+
+    private void readLock(int slot) {
+        int attempt = 0;
+        while (true) {
+            while (mWriter.get()) {
+                mSpinPolicy.spin(attempt++);
+            }
+
+            // Both the increment and the check below are atomic operations, so a writer either sees our counter or
+            // we see its flag.
+            mReaders.getAndIncrement(slot);
+            if (!mWriter.get()) return;
+            mReaders.getAndDecrement(slot);
+        }
+    }
+
+    private void readUnlock(int slot) {
+        mReaders.getAndDecrement(slot);
+    }
+
+    private void writeLock() {
+        int attempt = 0;
+        while (mWriter.get() || !mWriter.compareAndSet(false, true)) {
+            mSpinPolicy.spin(attempt++);
+        }
+
+        for (int i = 1; i <= SLOTS; i++) {
+            while (mReaders.get(i * STEP) != 0) {
+                mSpinPolicy.spin(attempt++);
+            }
+        }
+    }
+
+    private void writeUnlock() {
+        mWriter.set(false);
+    }
+
+    private static int slot() {
+        // Thread ids are mostly consecutive, mixing them a bit spreads threads better across slots.
+        long id = Thread.currentThread().getId();
+        int hash = (int) (id ^ (id >>> 16)) * 0x9E3779B9;
+        return ((hash >>> 16 & (SLOTS - 1)) + 1) * STEP;
+    }
+}
@@ -0,0 +1,166 @@
+package edu.puc.mecolab.spinlocks.concurrent;
+
+import edu.puc.mecolab.spinlocks.Account;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Account keeping several related variables (balance, number of operations, time of the last update and totals per
+ * type of operation) that can be read consistently WITHOUT locking, through a sequence lock (seqlock).
+ *
+ * Writers serialize among themselves through a {@link TTASLockBankAccount TTAS} lock, and bump a sequence counter both
+ * before and after updating the variables: while a write is in progress, the counter is odd. A reader reads the
+ * counter, then all variables, then the counter again; if the counter changed in between (or was odd), a write
+ * overlapped with the read and it is retried. Readers never write to shared memory, so no matter how often the account
+ * is monitored, writers are not slowed down at all (which is not the case for a reader-writer lock).
+ *
+ * Readers may read variables while they are being written, all of them must be declared volatile so that they are
+ * read in order and their updates are visible.
+ */
+public class SeqLockBankAccount extends Account {
+    private AtomicBoolean mFlag;
+
+    // Even while no write is in progress, odd otherwise.
+    private volatile int mSequence;
+
+    private volatile int mAmount;
+    private volatile long mOperations;
+    private volatile long mLastUpdateNanos;
+    private volatile long mTotalDeposited;
+    private volatile long mTotalWithdrawn;
+
+    private final SpinPolicy mSpinPolicy;
+
+    public SeqLockBankAccount(int amount) {
+        this(amount, SpinPolicy.BUSY);
+    }
+
+    /**
+     * @param amount The initial amount.
+     * @param spinPolicy What waiting writers do each time they find the lock busy, and readers each time they find a
+     * write in progress.
+     */
+    public SeqLockBankAccount(int amount, SpinPolicy spinPolicy) {
+        mAmount = amount;
+        mFlag = new AtomicBoolean(false);
+        mLastUpdateNanos = System.nanoTime();
+        mSpinPolicy = spinPolicy;
+    }
+
+    public void deposit(int amount) {
+        lock();
+        int sequence = mSequence;
+        mSequence = sequence + 1;
+
+        mAmount += amount;
+        mTotalDeposited += amount;
+        mOperations++;
+        mLastUpdateNanos = System.nanoTime();
+
+        mSequence = sequence + 2;
+        unlock();
+    }
+
+    public void withdraw(int amount) {
+        lock();
+        int sequence = mSequence;
+        mSequence = sequence + 1;
+
+        mAmount -= amount;
+        mTotalWithdrawn += amount;
+        mOperations++;
+        mLastUpdateNanos = System.nanoTime();
+
+        mSequence = sequence + 2;
+        unlock();
+    }
+
+    public int getAmount() {
+        // A single int is always read atomically, no need to go through the sequence counter.
+        return mAmount;
+    }
+
+    /**
+     * Reads all variables of the account at once, without locking.
+     *
+     * @return A consistent snapshot of the account, as it was between two writes.
+     */
+    public Snapshot getSnapshot() {
+        for (int attempt = 0; ; attempt++) {
+            int sequence = mSequence;
+            if ((sequence & 1) != 0) {
+                mSpinPolicy.spin(attempt);
+                continue;
+            }
+
+            int amount = mAmount;
+            long operations = mOperations;
+            long lastUpdateNanos = mLastUpdateNanos;
+            long totalDeposited = mTotalDeposited;
+            long totalWithdrawn = mTotalWithdrawn;
+
+            if (mSequence == sequence) {
+                return new Snapshot(amount, operations, lastUpdateNanos, totalDeposited, totalWithdrawn);
+            }
+        }
+    }
+
+    @Override
+    public String getStatistics() {
+        Snapshot snapshot = getSnapshot();
+        return "Operations: " + snapshot.getOperations() + ", total deposited: " + snapshot.getTotalDeposited()
+                + ", total withdrawn: " + snapshot.getTotalWithdrawn();
+    }
+
+    private void lock() {
+        for (int attempt = 0; mFlag.get() || mFlag.getAndSet(true); attempt++) {
+            mSpinPolicy.spin(attempt);
+        }
+    }
+
+    private void unlock() {
+        mFlag.set(false);
+    }
+
+    /**
+     * Immutable copy of the variables of a {@link SeqLockBankAccount} at a given point in time.
+     */
+    public static class Snapshot {
+        private final int mAmount;
+        private final long mOperations;
+        private final long mLastUpdateNanos;
+        private final long mTotalDeposited;
+        private final long mTotalWithdrawn;
+
+        private Snapshot(int amount, long operations, long lastUpdateNanos, long totalDeposited, long totalWithdrawn) {
+            mAmount = amount;
+            mOperations = operations;
+            mLastUpdateNanos = lastUpdateNanos;
+            mTotalDeposited = totalDeposited;
+            mTotalWithdrawn = totalWithdrawn;
+        }
+
+        public int getAmount() {
+            return mAmount;
+        }
+
+        public long getOperations() {
+            return mOperations;
+        }
+
+        /**
+         * @return The time of the last update, as given by {@link System#nanoTime()}.
+         */
+        public long getLastUpdateNanos() {
+            return mLastUpdateNanos;
+        }
+
+        public long getTotalDeposited() {
+            return mTotalDeposited;
+        }
+
+        public long getTotalWithdrawn() {
+            return mTotalWithdrawn;
+        }
+    }
+}
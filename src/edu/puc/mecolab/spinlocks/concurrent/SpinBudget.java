@@ -0,0 +1,37 @@
+package edu.puc.mecolab.spinlocks.concurrent;
+
+/**
+ * Adaptive spinning budget for locks that spin for a while and then park (block) waiting threads. Each time spinning
+ * is enough to get the lock, the budget grows; each time a thread has to park anyway, it shrinks. That way, threads
+ * keep spinning while lock handoffs are fast, and park almost immediately when they are not (e.g. when there are more
+ * threads than cores and lock holders get descheduled).
+ *
+ * The budget is shared by all the threads waiting on the same lock and updated without any synchronization: a lost
+ * update just makes the adaptation slightly slower. It is only written when its value actually changes.
+ */
+final class SpinBudget {
+    private static final int MIN_SPINS = 1 << 4;
+    private static final int MAX_SPINS = 1 << 16;
+
+    private int mSpins = 1 << 10;
+
+    int get() {
+        return mSpins;
+    }
+
+    /**
+     * To be called when a thread got the lock before running out of spins.
+     */
+    void spinSucceeded() {
+        int spins = mSpins;
+        if (spins < MAX_SPINS) mSpins = Math.min(MAX_SPINS, spins + (spins >> 3) + 1);
+    }
+
+    /**
+     * To be called when a thread ran out of spins and had to park.
+     */
+    void spinFailed() {
+        int spins = mSpins;
+        if (spins > MIN_SPINS) mSpins = Math.max(MIN_SPINS, spins >> 1);
+    }
+}
@@ -0,0 +1,35 @@
+package edu.puc.mecolab.spinlocks.concurrent;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+/**
+ * Access to Thread.onSpinWait(), which tells the processor that the calling thread is busy-waiting (a PAUSE instruction
+ * on x86). This lets the other hardware thread of the core run faster, saves power and avoids a costly pipeline flush
+ * once the awaited value changes. It was only added in Java 9, so it is looked up at runtime; on older JVMs, the hint is
+ * simply not given.
+ */
+final class SpinHint {
+    private static final MethodHandle ON_SPIN_WAIT = lookup();
+
+    private SpinHint() {}
+
+    static void onSpinWait() {
+        // A static final method handle is constant folded by the JIT, this ends up as a direct (intrinsic) call.
+        if (ON_SPIN_WAIT == null) return;
+        try {
+            ON_SPIN_WAIT.invokeExact();
+        } catch (Throwable e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static MethodHandle lookup() {
+        try {
+            return MethodHandles.lookup().findStatic(Thread.class, "onSpinWait", MethodType.methodType(void.class));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            return null;
+        }
+    }
+}
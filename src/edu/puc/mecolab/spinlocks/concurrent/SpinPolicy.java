@@ -0,0 +1,82 @@
+package edu.puc.mecolab.spinlocks.concurrent;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * What a thread does each time it finds the lock it is waiting for still busy. Spin locks accept a policy in their
+ * constructors, which allows trading CPU time for handoff latency without changing the locks themselves: busy spinning
+ * gets the lock the soonest but burns a whole core per waiting thread, while yielding or parking frees the core at the
+ * cost of a slower handoff.
+ *
+ * Policies are stateless (and may be shared between locks and threads): everything they need to know is the number of
+ * times the waiting thread has found the lock busy so far, which the lock keeps track of.
+ */
+@FunctionalInterface
+public interface SpinPolicy {
+    /**
+     * Just spin.
+     */
+    SpinPolicy BUSY = attempt -> {};
+
+    /**
+     * Spin, letting the processor know (see {@link SpinHint}).
+     */
+    SpinPolicy HINT = attempt -> SpinHint.onSpinWait();
+
+    /**
+     * Give up the core to any other thread that is ready to run.
+     */
+    SpinPolicy YIELD = attempt -> Thread.yield();
+
+    /**
+     * @param attempt Number of times the thread has found the lock busy so far, starting at 0.
+     */
+    void spin(int attempt);
+
+    /**
+     * Randomized exponential backoff: on each attempt, the thread waits (busy, with the spin hint) for a random time below
+     * a limit that starts at minNanos and doubles on each attempt up to maxNanos.
+     */
+    static SpinPolicy backoff(long minNanos, long maxNanos) {
+        if (minNanos < 1 || maxNanos < minNanos) throw new IllegalArgumentException("Invalid backoff bounds");
+
+        return attempt -> {
+            long limit = maxNanos;
+            if (attempt < Long.SIZE - 1 && minNanos <= maxNanos >> attempt) limit = minNanos << attempt;
+
+            long deadline = System.nanoTime() + ThreadLocalRandom.current().nextLong(limit);
+            while (System.nanoTime() - deadline < 0) {
+                SpinHint.onSpinWait();
+            }
+        };
+    }
+
+    /**
+     * Park the thread for the given time. Unlike parking until woken up, this does not need any help from the thread
+     * releasing the lock, but the handoff may be delayed by up to the given time.
+     */
+    static SpinPolicy park(long nanos) {
+        if (nanos < 1) throw new IllegalArgumentException("Invalid park time");
+
+        return attempt -> LockSupport.parkNanos(nanos);
+    }
+
+    /**
+     * Spin (with the spin hint) for the given number of attempts, then park for the given time on each attempt. Gets
+     * short waits handed off quickly while releasing the core during long ones, which is what virtual threads need: a
+     * parked virtual thread gives its carrier thread back, a spinning one does not.
+     */
+    static SpinPolicy spinThenPark(int spins, long nanos) {
+        if (spins < 0) throw new IllegalArgumentException("Invalid number of spins");
+        if (nanos < 1) throw new IllegalArgumentException("Invalid park time");
+
+        return attempt -> {
+            if (attempt < spins) {
+                SpinHint.onSpinWait();
+            } else {
+                LockSupport.parkNanos(nanos);
+            }
+        };
+    }
+}
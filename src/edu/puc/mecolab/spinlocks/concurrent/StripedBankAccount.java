@@ -0,0 +1,196 @@
+package edu.puc.mecolab.spinlocks.concurrent;
+
+import edu.puc.mecolab.spinlocks.Account;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * Account for pure deposit/withdrawal traffic that does not funnel all threads through a single memory location (not
+ * even {@link AtomicBankAccount}, whose atomic integer still bounces between cores). Similar to
+ * {@link java.util.concurrent.atomic.LongAdder}.
+ *
+ * The balance is split in a base value and a table of cells, each one padded to its own cache line. While there is no
+ * contention, threads simply CAS the base. As soon as a CAS fails, the table of cells is created and each thread from
+ * then on updates the cell its hash maps to. Whenever two threads collide on the same cell, one of them picks another
+ * cell (rehashing) and, if collisions keep happening, the table doubles up to the number of cores. The balance is the
+ * sum of the base and all cells, so reading it costs more than updating it, except while there has been no contention
+ * at all (no cells), in which case it is just a read of the base.
+ *
+ * Note that a balance read concurrently with updates is not a snapshot: it may include some of the concurrent updates
+ * but not others. Once all updates are done, the balance is exact.
+ */
+public class StripedBankAccount extends Account {
+    /**
+     * Maximum number of cells, the smallest power of 2 greater than or equal to the number of cores.
+     */
+    private static final int MAX_CELLS = Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1);
+
+    /**
+     * Per thread hash, shared among all instances (same as LongAdder). Changed whenever a thread collides on a cell.
+     */
+    private static final ThreadLocal<Probe> sProbe = ThreadLocal.withInitial(Probe::new);
+
+    private AtomicLong mBase;
+    private volatile Cell[] mCells;
+
+    /**
+     * Spin lock used when creating or resizing the cell table.
+     */
+    private AtomicBoolean mCellsBusy;
+
+    public StripedBankAccount(int amount) {
+        mBase = new AtomicLong(amount);
+        mCellsBusy = new AtomicBoolean(false);
+    }
+
+    public void deposit(int amount) {
+        add(amount);
+    }
+
+    public void withdraw(int amount) {
+        add(- amount);
+    }
+
+    public int getAmount() {
+        long sum = mBase.get();
+        Cell[] cells = mCells;
+        if (cells != null) {
+            for (Cell cell : cells) {
+                if (cell != null) sum += cell.mValue;
+            }
+        }
+        return (int) sum;
+    }
+
+    private void add(long x) {
+        Cell[] cells = mCells;
+        if (cells == null) {
+            long base = mBase.get();
+            if (mBase.compareAndSet(base, base + x)) return;
+        } else {
+            Cell cell = cells[sProbe.get().mHash & (cells.length - 1)];
+            if (cell != null) {
+                long value = cell.mValue;
+                if (cell.compareAndSet(value, value + x)) return;
+            }
+        }
+
+        addContended(x);
+    }
+
+    /**
+     * Slow path: creates, fills or resizes the cell table as needed, rehashing the thread on collisions.
+     */
+    private void addContended(long x) {
+        Probe probe = sProbe.get();
+        boolean collided = false;
+
+        while (true) {
+            Cell[] cells = mCells;
+            if (cells == null) {
+                // First contention: create the table with the new cell already in place.
+                if (!mCellsBusy.get() && mCellsBusy.compareAndSet(false, true)) {
+                    boolean created = false;
+                    if (mCells == null) {
+                        Cell[] table = new Cell[2];
+                        table[probe.mHash & 1] = new Cell(x);
+                        mCells = table;
+                        created = true;
+                    }
+                    mCellsBusy.set(false);
+                    if (created) return;
+                    continue;
+                }
+
+                // Someone else is creating the table, try the base once more meanwhile.
+                long base = mBase.get();
+                if (mBase.compareAndSet(base, base + x)) return;
+                continue;
+            }
+
+            int index = probe.mHash & (cells.length - 1);
+            Cell cell = cells[index];
+            if (cell == null) {
+                if (!mCellsBusy.get() && mCellsBusy.compareAndSet(false, true)) {
+                    boolean created = false;
+                    if (mCells == cells && cells[index] == null) {
+                        cells[index] = new Cell(x);
+                        created = true;
+                    }
+                    mCellsBusy.set(false);
+                    if (created) return;
+                    continue;
+                }
+                collided = false;
+            } else {
+                long value = cell.mValue;
+                if (cell.compareAndSet(value, value + x)) return;
+
+                if (collided && cells.length < MAX_CELLS && !mCellsBusy.get()
+                        && mCellsBusy.compareAndSet(false, true)) {
+                    // Second collision in a row: double the table (unless someone else already did it).
+                    if (mCells == cells) {
+                        Cell[] table = new Cell[cells.length * 2];
+                        System.arraycopy(cells, 0, table, 0, cells.length);
+                        mCells = table;
+                    }
+                    mCellsBusy.set(false);
+                    collided = false;
+                    continue;
+                }
+                collided = true;
+            }
+
+            probe.rehash();
+        }
+    }
+
+    private static class Probe {
+        private int mHash;
+
+        private Probe() {
+            long id = Thread.currentThread().getId();
+            mHash = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+            if (mHash == 0) mHash = 1;
+        }
+
+        /**
+         * Moves the thread to another cell (xorshift).
+         */
+        private void rehash() {
+            int hash = mHash;
+            hash ^= hash << 13;
+            hash ^= hash >>> 17;
+            hash ^= hash << 5;
+            mHash = hash;
+        }
+    }
+
+    // Padding is done through inheritance, the only way to be sure the JVM keeps the padding fields before and after
+    // the value (fields of a single class may be reordered).
+
+    private static class LeftPadding {
+        protected long p01, p02, p03, p04, p05, p06, p07;
+    }
+
+    private static class Value extends LeftPadding {
+        protected volatile long mValue;
+    }
+
+    private static class Cell extends Value {
+        private static final AtomicLongFieldUpdater<Value> sUpdater =
+                AtomicLongFieldUpdater.newUpdater(Value.class, "mValue");
+
+        protected long p11, p12, p13, p14, p15, p16, p17;
+
+        private Cell(long value) {
+            mValue = value;
+        }
+
+        private boolean compareAndSet(long expected, long value) {
+            return sUpdater.compareAndSet(this, expected, value);
+        }
+    }
+}
@@ -10,10 +10,20 @@ import java.util.concurrent.atomic.AtomicBoolean;
 public class TASLockBankAccount extends Account {
     private AtomicBoolean mFlag;
     private int mAmount;
+    private final SpinPolicy mSpinPolicy;
 
     public TASLockBankAccount(int amount) {
+        this(amount, SpinPolicy.BUSY);
+    }
+
+    /**
+     * @param amount The initial amount.
+     * @param spinPolicy What waiting threads do each time they find the lock busy.
+     */
+    public TASLockBankAccount(int amount, SpinPolicy spinPolicy) {
         mAmount = amount;
         mFlag = new AtomicBoolean(false);
+        mSpinPolicy = spinPolicy;
     }
 
     public void deposit(int amount) {
@@ -33,7 +43,9 @@ public class TASLockBankAccount extends Account {
     }
 
     private void lock() {
-        while (mFlag.getAndSet(true)) {}
+        for (int attempt = 0; mFlag.getAndSet(true); attempt++) {
+            mSpinPolicy.spin(attempt);
+        }
     }
 
     private void unlock() {
@@ -12,10 +12,20 @@ import java.util.concurrent.atomic.AtomicBoolean;
 public class TTASLockBankAccount extends Account {
     private AtomicBoolean mFlag;
     private int mAmount;
+    private final SpinPolicy mSpinPolicy;
 
     public TTASLockBankAccount(int amount) {
+        this(amount, SpinPolicy.BUSY);
+    }
+
+    /**
+     * @param amount The initial amount.
+     * @param spinPolicy What waiting threads do each time they find the lock busy.
+     */
+    public TTASLockBankAccount(int amount, SpinPolicy spinPolicy) {
         mAmount = amount;
         mFlag = new AtomicBoolean(false);
+        mSpinPolicy = spinPolicy;
     }
 
     public void deposit(int amount) {
@@ -44,7 +54,9 @@ public class TTASLockBankAccount extends Account {
             // if (!mFlag.getAndSet(true)) return;
             // </code>
 
-            while (!mFlag.compareAndSet(false, true)) {}
+            for (int attempt = 0; !mFlag.compareAndSet(false, true); attempt++) {
+                mSpinPolicy.spin(attempt);
+            }
             return;
         }
 
@@ -0,0 +1,90 @@
+package edu.puc.mecolab.spinlocks.concurrent;
+
+import edu.puc.mecolab.spinlocks.Account;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fair, FIFO, locking algorithm similar to the ones used at a bakery: each thread takes a ticket and waits until its
+ * number is called. Unlike {@link QueueLockBankAccount}, there is no limit on the number of waiting threads, as the
+ * whole queue is represented by just two counters.
+ *
+ * The drawback is that all threads spin on the same variable. Since a thread knows how many threads are ahead of it in
+ * the queue, it backs off proportionally to that distance (times {@link TicketLockBankAccount#BACKOFF_NANOS}) instead
+ * of polling all the time, which reduces the traffic on the shared variable considerably.
+ *
+ * Both counters are allowed to overflow: only differences and equality between tickets are ever used, which remain
+ * correct under int wraparound.
+ */
+public class TicketLockBankAccount extends Account {
+    /**
+     * Estimated time it takes for a thread to go through its critical section and hand the lock off.
+     */
+    private static final long BACKOFF_NANOS = 100;
+
+    private int mAmount;
+
+    private AtomicInteger mNextTicket;
+
+    // Shared variable used for spinning, must be declared volatile. Only written by the lock holder.
+    private volatile int mNowServing;
+
+    private final SpinPolicy mSpinPolicy;
+
+    public TicketLockBankAccount(int amount) {
+        this(amount, SpinPolicy.BUSY);
+    }
+
+    /**
+     * @param amount The initial amount.
+     * @param spinPolicy What waiting threads do each time they find the lock busy, and while backing off.
+     */
+    public TicketLockBankAccount(int amount, SpinPolicy spinPolicy) {
+        mAmount = amount;
+        mNextTicket = new AtomicInteger(0);
+        mNowServing = 0;
+        mSpinPolicy = spinPolicy;
+    }
+
+    public void deposit(int amount) {
+        lock();
+        mAmount += amount;
+        unlock();
+    }
+
+    public void withdraw(int amount) {
+        lock();
+        mAmount -= amount;
+        unlock();
+    }
+
+    public int getAmount() {
+        return mAmount;
+    }
+
+    private void lock() {
+        int ticket = mNextTicket.getAndIncrement();
+
+        int attempt = 0;
+        while (true) {
+            int distance = ticket - mNowServing;
+            if (distance == 0) return;
+
+            // The next thread in line just polls, all others wait for the threads ahead of them to be (roughly) served.
+            // Both go through the spin policy, so that a parking policy releases the core during the whole wait.
+            if (distance > 1) {
+                long deadline = System.nanoTime() + (distance - 1) * BACKOFF_NANOS;
+                while (System.nanoTime() - deadline < 0) {
+                    mSpinPolicy.spin(attempt++);
+                }
+            } else {
+                mSpinPolicy.spin(attempt++);
+            }
+        }
+    }
+
+    private void unlock() {
+        // Only the lock holder writes this variable, so no atomic increment is needed.
+        mNowServing = mNowServing + 1;
+    }
+}
@@ -2,90 +2,170 @@ package edu.puc.mecolab.spinlocks.concurrent;
 
 import edu.puc.mecolab.spinlocks.Account;
 
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Lock queueing algorithm that implements a tryLock method. Threads attempting to hold the lock for longer than
- * {@link TimeoutLockBankAccount#THRESHOLD} will be put to sleep for {@link TimeoutLockBankAccount#SLEEP} in order
- * to reduce overhead in the system. This is very useful for situations with high contention, but the THRESHOLD and
- * SLEEP variables must be fine tuned for the problem at hand.
+ * {@link TimeoutLockBankAccount#THRESHOLD} give up their place in the queue, yield their core (a thread ahead of them in
+ * the queue may be the one that needs it) and try again. This is very useful for situations with high contention, but
+ * the THRESHOLD variable must be fine tuned for the problem at hand.
+ *
+ * Nodes are recycled as in {@link CLHLockBankAccount}: once a thread gets the lock, nobody else references its
+ * predecessor's node, so it becomes the thread's node for its next acquisition. Nodes left behind by threads that gave
+ * up (which are still referenced by their successors) are the only ones that are not recycled, a thread that abandons
+ * its node gets a new one.
+ *
+ * A thread's nodes are kept in a {@link Handle}. Callers may own their handles (see
+ * {@link TimeoutLockBankAccount#newHandle()}) and pass them along, otherwise one is looked up per operation.
  */
 public class TimeoutLockBankAccount extends Account {
     public static final Status AVAILABLE = new Status();
 
-    private static final int THRESHOLD = 10;
-    private static final int SLEEP = 100;
+    /**
+     * In nanoseconds.
+     */
+    private static final long THRESHOLD = 10000;
 
     private int mAmount;
 
     private AtomicReference<Status> mTail;
-    private ThreadLocal<Status> mStatus;
+    private ThreadLocal<Handle> mHandle;
+
+    private final SpinPolicy mSpinPolicy;
 
     public TimeoutLockBankAccount(int amount) {
+        this(amount, SpinPolicy.BUSY);
+    }
+
+    /**
+     * @param amount The initial amount.
+     * @param spinPolicy What waiting threads do each time they find their predecessor still holding the lock.
+     */
+    public TimeoutLockBankAccount(int amount, SpinPolicy spinPolicy) {
         mAmount = amount;
+        mSpinPolicy = spinPolicy;
 
-        mTail = new AtomicReference<>(null);
+        // The queue starts with an already released node, so every thread has a predecessor.
+        Status status = new Status();
+        status.mPredecessor = AVAILABLE;
+        mTail = new AtomicReference<>(status);
 
-        mStatus = ThreadLocal.withInitial(Status::new);
+        mHandle = ThreadLocal.withInitial(Handle::new);
     }
 
     public void deposit(int amount) {
-        while (!tryLock(THRESHOLD)) {
-            try {
-                Thread.sleep(SLEEP);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-        }
-
-        mAmount += amount;
-        unlock();
+        deposit(mHandle.get(), amount);
     }
 
     public void withdraw(int amount) {
-        while (!tryLock(THRESHOLD)) {
-            try {
-                Thread.sleep(SLEEP);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-        }
+        withdraw(mHandle.get(), amount);
+    }
 
+    public void deposit(Handle handle, int amount) {
+        lock(handle);
+        mAmount += amount;
+        unlock(handle);
+    }
+
+    public void withdraw(Handle handle, int amount) {
+        lock(handle);
         mAmount -= amount;
-        unlock();
+        unlock(handle);
     }
 
     public int getAmount() {
         return mAmount;
     }
 
-    private boolean tryLock(int maxWait) {
-        long startTime = System.currentTimeMillis();
+    /**
+     * Attempts to acquire the lock, giving up once the timeout has elapsed.
+     *
+     * @return true if the lock was successfully acquired, false otherwise.
+     */
+    public boolean tryLock(long time, TimeUnit unit) {
+        return tryLock(mHandle.get(), time, unit);
+    }
 
-        Status myStatus = new Status();
-        mStatus.set(myStatus);
+    /**
+     * Same as {@link TimeoutLockBankAccount#tryLock(long, TimeUnit)}, with a handle owned by the caller, which must be
+     * passed to {@link TimeoutLockBankAccount#unlock(Handle)} as well.
+     */
+    public boolean tryLock(Handle handle, long time, TimeUnit unit) {
+        long deadline = System.nanoTime() + unit.toNanos(time);
+
+        Status myStatus = handle.mStatus;
         myStatus.mPredecessor = null;
 
         Status myPredecessor = mTail.getAndSet(myStatus);
-        if (myPredecessor == null || myPredecessor.mPredecessor == AVAILABLE) return true;
-
-        while (System.currentTimeMillis() - startTime < maxWait) {
+        for (int attempt = 0; ; attempt++) {
             Status mySecondPredecessor = myPredecessor.mPredecessor;
             if (mySecondPredecessor == AVAILABLE) {
+                handle.mPredecessor = myPredecessor;
                 return true;
             } else if (mySecondPredecessor != null) {
+                // Our predecessor gave up, we wait for its own predecessor instead.
                 myPredecessor = mySecondPredecessor;
+            } else if (System.nanoTime() - deadline >= 0) {
+                break;
+            } else {
+                mSpinPolicy.spin(attempt);
             }
         }
 
-        if (!mTail.compareAndSet(myStatus, myPredecessor)) myStatus.mPredecessor = myPredecessor;
+        // If no one is behind us, we can just leave the queue and keep our node. Otherwise, our successor is told who to
+        // wait for instead of us, and our node is left to it.
+        if (!mTail.compareAndSet(myStatus, myPredecessor)) {
+            myStatus.mPredecessor = myPredecessor;
+            handle.mStatus = new Status();
+        }
 
         return false;
     }
 
-    private void unlock() {
-        Status myStatus = mStatus.get();
-        if (!mTail.compareAndSet(myStatus, null)) myStatus.mPredecessor = AVAILABLE;
+    /**
+     * Releases the lock.
+     */
+    public void unlock() {
+        unlock(mHandle.get());
+    }
+
+    /**
+     * Releases the lock acquired with the given handle.
+     */
+    public void unlock(Handle handle) {
+        Status myStatus = handle.mStatus;
+        // Our predecessor's node is no longer used by anyone, it becomes ours for the next lock.
+        handle.mStatus = handle.mPredecessor;
+        myStatus.mPredecessor = AVAILABLE;
+    }
+
+    /**
+     * Acquires the lock with a handle owned by the caller, which must be passed to
+     * {@link TimeoutLockBankAccount#unlock(Handle)} as well.
+     */
+    public void lock(Handle handle) {
+        while (!tryLock(handle, THRESHOLD, TimeUnit.NANOSECONDS)) {
+            Thread.yield();
+        }
+    }
+
+    /**
+     * @return A new handle, to be used by a single thread at a time (with this or any other lock of this class).
+     */
+    public Handle newHandle() {
+        return new Handle();
+    }
+
+    /**
+     * A thread's context for the lock: the node it enqueues when locking and the node it waited for, which it takes
+     * over when unlocking. A handle must not be used for two locks at the same time.
+     */
+    public static final class Handle {
+        private Status mStatus = new Status();
+        private Status mPredecessor;
+
+        private Handle() {}
     }
 
     private static class Status {
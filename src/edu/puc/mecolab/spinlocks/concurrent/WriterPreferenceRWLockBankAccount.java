@@ -0,0 +1,87 @@
+package edu.puc.mecolab.spinlocks.concurrent;
+
+import edu.puc.mecolab.spinlocks.Account;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reader-writer spin lock like {@link ReaderPreferenceRWLockBankAccount}, but in which writers are preferred: as soon as
+ * a writer is waiting, new readers are held back until all waiting writers are done. Readers that are already holding
+ * the lock are let finish. Under a steady stream of writers, readers may starve.
+ *
+ * The lock state is kept in a single counter: the lowest bit is set while a writer holds the lock, the next 15 bits
+ * count the waiting writers and the upper 16 bits count the readers holding the lock.
+ */
+public class WriterPreferenceRWLockBankAccount extends Account {
+    private static final int WRITER = 1;
+    private static final int WAITING_WRITER = 1 << 1;
+    private static final int WAITING_WRITERS_MASK = 0x7FFF << 1;
+    private static final int READER_SHIFT = 16;
+    private static final int READER = 1 << READER_SHIFT;
+
+    private int mAmount;
+
+    private AtomicInteger mState;
+
+    private final SpinPolicy mSpinPolicy;
+
+    public WriterPreferenceRWLockBankAccount(int amount) {
+        this(amount, SpinPolicy.BUSY);
+    }
+
+    /**
+     * @param amount The initial amount.
+     * @param spinPolicy What waiting readers and writers do each time they find the lock busy.
+     */
+    public WriterPreferenceRWLockBankAccount(int amount, SpinPolicy spinPolicy) {
+        mAmount = amount;
+        mState = new AtomicInteger(0);
+        mSpinPolicy = spinPolicy;
+    }
+
+    public void deposit(int amount) {
+        writeLock();
+        mAmount += amount;
+        writeUnlock();
+    }
+
+    public void withdraw(int amount) {
+        writeLock();
+        mAmount -= amount;
+        writeUnlock();
+    }
+
+    public int getAmount() {
+        readLock();
+        int amount = mAmount;
+        readUnlock();
+        return amount;
+    }
+
+    private void readLock() {
+        for (int attempt = 0; ; attempt++) {
+            int state = mState.get();
+            if ((state & (WRITER | WAITING_WRITERS_MASK)) == 0 && mState.compareAndSet(state, state + READER)) return;
+            mSpinPolicy.spin(attempt);
+        }
+    }
+
+    private void readUnlock() {
+        mState.getAndAdd(-READER);
+    }
+
+    private void writeLock() {
+        // Announcing ourselves keeps new readers out.
+        mState.getAndAdd(WAITING_WRITER);
+        for (int attempt = 0; ; attempt++) {
+            int state = mState.get();
+            boolean free = (state & WRITER) == 0 && (state >>> READER_SHIFT) == 0;
+            if (free && mState.compareAndSet(state, state - WAITING_WRITER + WRITER)) return;
+            mSpinPolicy.spin(attempt);
+        }
+    }
+
+    private void writeUnlock() {
+        mState.getAndAdd(-WRITER);
+    }
+}
@@ -0,0 +1,153 @@
+package edu.puc.mecolab.spinlocks.locks;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+/**
+ * Mutex for code that must never block or spin a thread, e.g. an event loop. {@link AsyncMutex#acquire()} returns a
+ * future that completes once the caller holds the mutex, and whoever holds it calls {@link AsyncMutex#release()} when
+ * done, from any thread. Neither method waits for anything.
+ *
+ * The algorithm borrows from the queue locks (see {@link MCSLock}), but waiting threads are replaced by futures, and
+ * the tail is used as a stack of arrivals: a waiter links itself to the previous top BEFORE pushing itself, so, unlike
+ * in MCS, nobody ever waits for a link to be set. The holder takes all arrivals at once, reverses them into a private
+ * queue, and hands the mutex to them in order. The handoff completes the next waiter's future on the executor given to
+ * the constructor, so that the previous holder does not run the next holder's code (and so on, recursively).
+ *
+ * When the mutex is free, acquiring it is a single CAS and returns an already completed future, without allocating
+ * anything. Cancelling a waiting future gives up the place in the queue: the mutex is passed on once it reaches it.
+ */
+public class AsyncMutex {
+    /**
+     * Returned by acquire() when the mutex was free. Must not be completed or cancelled by callers.
+     */
+    private static final CompletableFuture<Void> ACQUIRED = CompletableFuture.completedFuture(null);
+
+    /**
+     * Top of the stack when the mutex is held and no one arrived since the holder last looked.
+     */
+    private static final Waiter HELD = new Waiter(null);
+
+    /**
+     * null if the mutex is free, HELD if it is held, or the last waiter to arrive.
+     */
+    private final AtomicReference<Waiter> mTop;
+
+    /**
+     * Waiters taken from the stack, in arrival order. Only accessed by the holder.
+     */
+    private Waiter mQueue;
+
+    private final Executor mExecutor;
+
+    public AsyncMutex() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    /**
+     * @param executor Where the futures of waiters are completed, i.e. where code chained to them runs (unless
+     * chained with an async method).
+     */
+    public AsyncMutex(Executor executor) {
+        mTop = new AtomicReference<>(null);
+        mExecutor = executor;
+    }
+
+    /**
+     * @return A future completed once the mutex is held by the caller, who must release it.
+     */
+    public CompletableFuture<Void> acquire() {
+        if (mTop.compareAndSet(null, HELD)) return ACQUIRED;
+
+        Waiter waiter = new Waiter(this);
+        while (true) {
+            Waiter top = mTop.get();
+            if (top == null) {
+                if (mTop.compareAndSet(null, HELD)) return ACQUIRED;
+            } else {
+                // Published by the CAS.
+                waiter.mNext = top == HELD ? null : top;
+                if (mTop.compareAndSet(top, waiter)) return waiter;
+            }
+        }
+    }
+
+    /**
+     * Acquires the mutex only if it is free.
+     *
+     * @return true if the mutex was acquired, false otherwise.
+     */
+    public boolean tryAcquire() {
+        return mTop.get() == null && mTop.compareAndSet(null, HELD);
+    }
+
+    /**
+     * Releases the mutex, handing it to the first waiter if any. Must be called by the holder, exactly once.
+     */
+    public void release() {
+        Waiter next = mQueue;
+        while (next == null) {
+            Waiter top = mTop.get();
+            if (top == HELD) {
+                if (mTop.compareAndSet(HELD, null)) return;
+            } else if (mTop.compareAndSet(top, HELD)) {
+                next = reverse(top);
+            }
+        }
+
+        // The next holder takes over the rest of the queue, it is published by the handoff.
+        mQueue = next.mNext;
+        next.mNext = null;
+        mExecutor.execute(next);
+    }
+
+    /**
+     * Runs the action while holding the mutex, and releases it afterwards even if the action fails.
+     *
+     * @return A future completed with the action's result (or exception).
+     */
+    public <T> CompletableFuture<T> withLock(Supplier<T> action) {
+        return acquire().thenApply(ignored -> {
+            try {
+                return action.get();
+            } finally {
+                release();
+            }
+        });
+    }
+
+    /**
+     * @return The given waiters (linked from the newest one) linked in arrival order.
+     */
+    private static Waiter reverse(Waiter newest) {
+        Waiter oldest = null;
+        while (newest != null) {
+            Waiter next = newest.mNext;
+            newest.mNext = oldest;
+            oldest = newest;
+            newest = next;
+        }
+        return oldest;
+    }
+
+    /**
+     * A waiter is both its caller's future and the task that completes it.
+     */
+    private static class Waiter extends CompletableFuture<Void> implements Runnable {
+        private final AsyncMutex mMutex;
+        private Waiter mNext;
+
+        private Waiter(AsyncMutex mutex) {
+            mMutex = mutex;
+        }
+
+        @Override
+        public void run() {
+            // A waiter that was cancelled (or completed by someone else) does not want the mutex anymore.
+            if (!complete(null)) mMutex.release();
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package edu.puc.mecolab.spinlocks.locks;
+
+import edu.puc.mecolab.spinlocks.concurrent.BackoffLockBankAccount;
+import edu.puc.mecolab.spinlocks.concurrent.SpinPolicy;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Test-and-test-and-set lock with exponential backoff, see {@link BackoffLockBankAccount}. Unlike {@link TTASLock}, the
+ * spin policy is also applied after losing the race for the lock, not only while waiting for it to look free.
+ */
+public class BackoffLock extends SpinLock {
+    // In nanoseconds.
+    private static final long MIN_DELAY = 1000;
+    private static final long MAX_DELAY = 100000;
+
+    private final AtomicBoolean mFlag;
+    private final SpinPolicy mSpinPolicy;
+
+    public BackoffLock() {
+        this(SpinPolicy.backoff(MIN_DELAY, MAX_DELAY));
+    }
+
+    /**
+     * @param spinPolicy What threads do each time they find the lock busy or fail to take it.
+     */
+    public BackoffLock(SpinPolicy spinPolicy) {
+        mFlag = new AtomicBoolean(false);
+        mSpinPolicy = spinPolicy;
+    }
+
+    @Override
+    public void lock() {
+        int attempt = 0;
+        while (true) {
+            while (mFlag.get()) {
+                mSpinPolicy.spin(attempt++);
+            }
+            if (!mFlag.getAndSet(true)) return;
+            mSpinPolicy.spin(attempt++);
+        }
+    }
+
+    @Override
+    protected boolean tryLockNanos(long nanos) {
+        long deadline = System.nanoTime() + nanos;
+        int attempt = 0;
+        while (true) {
+            while (mFlag.get()) {
+                if (System.nanoTime() - deadline >= 0) return false;
+                mSpinPolicy.spin(attempt++);
+            }
+            if (!mFlag.getAndSet(true)) return true;
+            if (System.nanoTime() - deadline >= 0) return false;
+            mSpinPolicy.spin(attempt++);
+        }
+    }
+
+    @Override
+    public void unlock() {
+        mFlag.set(false);
+    }
+}
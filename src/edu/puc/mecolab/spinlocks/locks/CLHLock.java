@@ -0,0 +1,113 @@
+package edu.puc.mecolab.spinlocks.locks;
+
+import edu.puc.mecolab.spinlocks.concurrent.CLHLockBankAccount;
+import edu.puc.mecolab.spinlocks.concurrent.SpinPolicy;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * CLH queue lock, see {@link CLHLockBankAccount}. A thread that gives up waiting leaves its node in the queue pointing
+ * to the node it was waiting for, so its successor waits for that one instead.
+ *
+ * Each thread's nodes are looked up once per acquisition. The holder's ones are then kept in a field for unlocking.
+ */
+public class CLHLock extends SpinLock {
+    private final AtomicReference<Node> mTail;
+    private final ThreadLocal<Handle> mHandle;
+
+    /**
+     * The handle of the thread currently holding the lock. Only accessed by the lock holder.
+     */
+    private Handle mHolder;
+
+    private final SpinPolicy mSpinPolicy;
+
+    public CLHLock() {
+        this(SpinPolicy.BUSY);
+    }
+
+    /**
+     * @param spinPolicy What waiting threads do each time they find their predecessor still locked.
+     */
+    public CLHLock(SpinPolicy spinPolicy) {
+        mTail = new AtomicReference<>(new Node());
+        mHandle = ThreadLocal.withInitial(Handle::new);
+        mSpinPolicy = spinPolicy;
+    }
+
+    @Override
+    public void lock() {
+        Handle handle = mHandle.get();
+        Node node = handle.mNode;
+        node.mLocked = true;
+
+        handle.mPredecessor = await(mTail.getAndSet(node), false, 0);
+        mHolder = handle;
+    }
+
+    @Override
+    protected boolean tryLockNanos(long nanos) {
+        long deadline = System.nanoTime() + nanos;
+
+        Handle handle = mHandle.get();
+        Node node = handle.mNode;
+        node.mLocked = true;
+
+        Node predecessor = await(mTail.getAndSet(node), true, deadline);
+        // The predecessor may have unlocked right after we gave up, in which case we hold the lock anyway.
+        if (!predecessor.mLocked) {
+            handle.mPredecessor = predecessor;
+            mHolder = handle;
+            return true;
+        }
+
+        // If no one is behind us, we can just leave the queue and keep our node. Otherwise, our successor is told who to
+        // wait for instead of us, and our node is left to it.
+        if (!mTail.compareAndSet(node, predecessor)) {
+            node.mPredecessor = predecessor;
+            handle.mNode = new Node();
+        }
+        return false;
+    }
+
+    @Override
+    public void unlock() {
+        Handle handle = mHolder;
+        Node node = handle.mNode;
+        // Our predecessor's node is no longer used by anyone, it becomes ours for the next lock.
+        handle.mNode = handle.mPredecessor;
+        node.mLocked = false;
+    }
+
+    /**
+     * Waits for the predecessor to unlock, skipping predecessors that gave up.
+     *
+     * @param timed Whether to give up once the deadline is reached.
+     * @return The predecessor, which is unlocked unless the deadline was reached.
+     */
+    private Node await(Node predecessor, boolean timed, long deadline) {
+        for (int attempt = 0; predecessor.mLocked; attempt++) {
+            Node abandoned = predecessor.mPredecessor;
+            if (abandoned != null) {
+                predecessor = abandoned;
+                continue;
+            }
+
+            if (timed && System.nanoTime() - deadline >= 0) return predecessor;
+            mSpinPolicy.spin(attempt);
+        }
+        return predecessor;
+    }
+
+    private static class Handle {
+        private Node mNode = new Node();
+        private Node mPredecessor;
+    }
+
+    private static class Node {
+        // Shared variable between at most 2 threads used for spinning. Must be declared volatile.
+        private volatile boolean mLocked;
+        // Set when the owner gave up waiting: the node it was waiting for, its successor must wait for it instead.
+        private volatile Node mPredecessor;
+    }
+}
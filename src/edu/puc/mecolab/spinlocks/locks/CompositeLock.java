@@ -0,0 +1,222 @@
+package edu.puc.mecolab.spinlocks.locks;
+
+import edu.puc.mecolab.spinlocks.concurrent.CacheLine;
+import edu.puc.mecolab.spinlocks.concurrent.CompositeLockBankAccount;
+import edu.puc.mecolab.spinlocks.concurrent.SpinPolicy;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Composite lock, see {@link CompositeLockBankAccount}: a virtual queue of a few shared nodes, for which all other
+ * threads back off. Parameters are fixed here (no adaptive mode), and threads waiting in lock() for longer than the
+ * threshold yield their core and try again instead of parking.
+ */
+public class CompositeLock extends SpinLock {
+    // Default parameters. All times are in nanoseconds.
+    private static final long THRESHOLD = 500000;
+    private static final int SIZE = 4;
+    private static final long MIN_BACKOFF = 1000;
+    private static final long MAX_BACKOFF = 10000;
+
+    /**
+     * Distance between two nodes in the shared array. Each node's predecessor is kept in the same line as its state.
+     */
+    private static final int STEP = CacheLine.INTS;
+    private static final int PREDECESSOR = 1;
+
+    // Node states, see CompositeLockBankAccount.
+    private static final int FREE = 0;
+    private static final int WAITING = 1;
+    private static final int RELEASED = 2;
+    private static final int ABORTED = 3;
+
+    private static final int NONE = -1;
+    private static final int TIMED_OUT = -2;
+
+    private final long mThreshold;
+    private final long mMinBackoff;
+    private final long mMaxBackoff;
+    private final SpinPolicy mSpinPolicy;
+
+    /**
+     * The last node of the virtual queue (lower half, plus one so NONE is 0), and a stamp to avoid the ABA problem
+     * (upper half).
+     */
+    private final AtomicLong mTail;
+
+    /**
+     * Node i's state is at (i + 1) * STEP, and its predecessor (when aborted) right after it.
+     */
+    private final AtomicIntegerArray mNodes;
+    private final int mSize;
+
+    /**
+     * The node of the thread currently holding the lock. Only accessed by the lock holder.
+     */
+    private int mHeldNode;
+
+    public CompositeLock() {
+        this(SIZE, MIN_BACKOFF, MAX_BACKOFF, THRESHOLD, SpinPolicy.BUSY);
+    }
+
+    /**
+     * @param size The number of nodes.
+     * @param minBackoff Initial backoff limit, in nanoseconds.
+     * @param maxBackoff Maximum backoff limit, in nanoseconds.
+     * @param threshold Time a thread may wait in lock() before trying again, in nanoseconds.
+     * @param spinPolicy What queued threads do each time they find their predecessor not released yet, and what threads
+     * backing off for a node do until their delay is over.
+     */
+    public CompositeLock(int size, long minBackoff, long maxBackoff, long threshold, SpinPolicy spinPolicy) {
+        if (size < 1) throw new IllegalArgumentException("At least one node is required");
+        if (minBackoff < 1 || maxBackoff < minBackoff) throw new IllegalArgumentException("Invalid backoff bounds");
+        if (threshold < 1) throw new IllegalArgumentException("Invalid threshold");
+
+        mThreshold = threshold;
+        mMinBackoff = minBackoff;
+        mMaxBackoff = maxBackoff;
+        mSpinPolicy = spinPolicy;
+
+        mTail = new AtomicLong(tail(NONE, 0));
+        mSize = size;
+        // Padding is added at both ends, so that no node shares its line with other objects. All nodes start FREE.
+        mNodes = new AtomicIntegerArray((size + 2) * STEP);
+    }
+
+    @Override
+    public void lock() {
+        while (!tryLockNanos(mThreshold)) {
+            Thread.yield();
+        }
+    }
+
+    @Override
+    protected boolean tryLockNanos(long nanos) {
+        long startTime = System.nanoTime();
+
+        int node = acquireNode(startTime, nanos);
+        if (node == TIMED_OUT) return false;
+
+        int predecessor = spliceNode(node, startTime, nanos);
+        if (predecessor == TIMED_OUT) return false;
+
+        return waitForPredecessor(predecessor, node, startTime, nanos);
+    }
+
+    @Override
+    public void unlock() {
+        mNodes.set(state(mHeldNode), RELEASED);
+    }
+
+    /**
+     * Acquires one of the nodes, cleaning up the queue if the node is the tail and was ABORTED or RELEASED. Backs off
+     * if the node is in use.
+     *
+     * @return A node in WAITING state, or TIMED_OUT.
+     */
+    private int acquireNode(long startTime, long maxWait) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int node = random.nextInt(mSize);
+        long limit = mMinBackoff;
+        int attempt = 0;
+
+        while (true) {
+            if (mNodes.compareAndSet(state(node), FREE, WAITING)) {
+                return node;
+            }
+
+            long currentTail = mTail.get();
+            int state = mNodes.get(state(node));
+
+            // Only the thread that finds the node at the tail of the queue cleans it up.
+            if ((state == ABORTED || state == RELEASED) && node == tailNode(currentTail)) {
+                int predecessor = state == ABORTED ? mNodes.get(predecessor(node)) : NONE;
+                if (mTail.compareAndSet(currentTail, tail(predecessor, tailStamp(currentTail) + 1))) {
+                    mNodes.set(state(node), WAITING);
+                    return node;
+                }
+            }
+
+            if (System.nanoTime() - startTime >= maxWait) return TIMED_OUT;
+
+            long deadline = System.nanoTime() + random.nextLong(limit);
+            limit = Math.min(mMaxBackoff, limit * 2);
+            while (System.nanoTime() - deadline < 0) {
+                mSpinPolicy.spin(attempt++);
+            }
+        }
+    }
+
+    /**
+     * Splices the node into the virtual queue.
+     *
+     * @return The node's predecessor (NONE if the queue was empty), or TIMED_OUT.
+     */
+    private int spliceNode(int node, long startTime, long maxWait) {
+        while (true) {
+            long currentTail = mTail.get();
+            if (mTail.compareAndSet(currentTail, tail(node, tailStamp(currentTail) + 1))) return tailNode(currentTail);
+
+            if (System.nanoTime() - startTime >= maxWait) {
+                mNodes.set(state(node), FREE);
+                return TIMED_OUT;
+            }
+        }
+    }
+
+    /**
+     * Waits for the predecessor to release the lock, skipping predecessors that gave up.
+     *
+     * @return false if the thread gave up, leaving its node ABORTED.
+     */
+    private boolean waitForPredecessor(int predecessor, int node, long startTime, long maxWait) {
+        if (predecessor == NONE) {
+            mHeldNode = node;
+            return true;
+        }
+
+        int predecessorState = mNodes.get(state(predecessor));
+        for (int attempt = 0; predecessorState != RELEASED; attempt++) {
+            if (predecessorState == ABORTED) {
+                int temp = predecessor;
+                predecessor = mNodes.get(predecessor(predecessor));
+                mNodes.set(state(temp), FREE);
+            }
+
+            if (System.nanoTime() - startTime >= maxWait) {
+                // The predecessor is published by the (volatile) state write.
+                mNodes.lazySet(predecessor(node), predecessor);
+                mNodes.set(state(node), ABORTED);
+                return false;
+            }
+
+            mSpinPolicy.spin(attempt);
+            predecessorState = mNodes.get(state(predecessor));
+        }
+        mNodes.set(state(predecessor), FREE);
+        mHeldNode = node;
+        return true;
+    }
+
+    private static long tail(int node, int stamp) {
+        return ((long) stamp << 32) | ((node + 1) & 0xFFFFFFFFL);
+    }
+
+    private static int tailNode(long tail) {
+        return (int) tail - 1;
+    }
+
+    private static int tailStamp(long tail) {
+        return (int) (tail >>> 32);
+    }
+
+    private static int state(int node) {
+        return (node + 1) * STEP;
+    }
+
+    private static int predecessor(int node) {
+        return (node + 1) * STEP + PREDECESSOR;
+    }
+}
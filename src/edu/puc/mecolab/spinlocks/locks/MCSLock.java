@@ -0,0 +1,115 @@
+package edu.puc.mecolab.spinlocks.locks;
+
+import edu.puc.mecolab.spinlocks.concurrent.MCSLockBankAccount;
+import edu.puc.mecolab.spinlocks.concurrent.SpinPolicy;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * MCS queue lock, see {@link MCSLockBankAccount}. The algorithm has no simple way to leave the queue, so timed attempts
+ * never join it: they only take the lock when no one holds it or waits for it, and keep checking until the time is up.
+ * They are therefore not FIFO, and may never succeed behind a steady stream of lock() callers.
+ *
+ * lockInterruptibly() joins the queue like lock(), so it keeps the FIFO order. A thread interrupted while waiting still
+ * waits for its turn, and then hands the lock on right away before throwing.
+ */
+public class MCSLock extends SpinLock {
+    private final AtomicReference<Node> mTail;
+    private final ThreadLocal<Node> mMyNode;
+
+    /**
+     * The node of the thread currently holding the lock. Only accessed by the lock holder.
+     */
+    private Node mHolder;
+
+    private final SpinPolicy mSpinPolicy;
+
+    public MCSLock() {
+        this(SpinPolicy.BUSY);
+    }
+
+    /**
+     * @param spinPolicy What waiting threads do each time they find the lock busy.
+     */
+    public MCSLock(SpinPolicy spinPolicy) {
+        mTail = new AtomicReference<>(null);
+        mMyNode = ThreadLocal.withInitial(Node::new);
+        mSpinPolicy = spinPolicy;
+    }
+
+    @Override
+    public void lock() {
+        enqueue(false);
+    }
+
+    @Override
+    public void lockInterruptibly() throws InterruptedException {
+        if (Thread.interrupted()) throw new InterruptedException();
+        if (enqueue(true)) {
+            unlock();
+            throw new InterruptedException();
+        }
+    }
+
+    @Override
+    protected boolean tryLockNanos(long nanos) {
+        long deadline = System.nanoTime() + nanos;
+        Node node = mMyNode.get();
+
+        for (int attempt = 0; mTail.get() != null || !mTail.compareAndSet(null, node); attempt++) {
+            if (System.nanoTime() - deadline >= 0) return false;
+            mSpinPolicy.spin(attempt);
+        }
+        mHolder = node;
+        return true;
+    }
+
+    /**
+     * Joins the queue and waits for the lock.
+     *
+     * @param interruptible Whether to check for interrupts while waiting.
+     * @return true if the thread was interrupted while waiting (its interrupt status is then cleared).
+     */
+    private boolean enqueue(boolean interruptible) {
+        Node node = mMyNode.get();
+        node.mLocked = true;
+
+        boolean interrupted = false;
+        Node predecessor = mTail.getAndSet(node);
+        if (predecessor != null) {
+            predecessor.mNext = node;
+            for (int attempt = 0; node.mLocked; attempt++) {
+                // Clearing the status on every check keeps parking policies from returning right away.
+                if (interruptible && Thread.interrupted()) interrupted = true;
+                mSpinPolicy.spin(attempt);
+            }
+        }
+        mHolder = node;
+        return interrupted;
+    }
+
+    @Override
+    public void unlock() {
+        Node node = mHolder;
+        if (node.mNext == null) {
+            // No known successor. If we are still the tail, the queue becomes empty and we are done.
+            if (mTail.compareAndSet(node, null)) return;
+
+            // Otherwise, someone has just swapped itself into the tail but has not linked itself to our node yet.
+            for (int attempt = 0; node.mNext == null; attempt++) {
+                mSpinPolicy.spin(attempt);
+            }
+        }
+
+        node.mNext.mLocked = false;
+        // Our successor no longer needs our node, it can be safely reused on our next lock.
+        node.mNext = null;
+    }
+
+    private static class Node {
+        // Flag set by the owner and cleared by its predecessor. Must be declared volatile.
+        private volatile boolean mLocked;
+        // Successor in the queue, written by the successor and read by the owner. Must be declared volatile.
+        private volatile Node mNext;
+    }
+}
@@ -0,0 +1,139 @@
+package edu.puc.mecolab.spinlocks.locks;
+
+import edu.puc.mecolab.spinlocks.concurrent.CacheLine;
+import edu.puc.mecolab.spinlocks.concurrent.PaddedQueueLockBankAccount;
+import edu.puc.mecolab.spinlocks.concurrent.SpinPolicy;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Anderson's array-based queue lock, with padded slots, see {@link PaddedQueueLockBankAccount}. Threads that give up
+ * waiting mark their slot as aborted for their ticket, and are skipped when the lock is released. As in
+ * {@link edu.puc.mecolab.spinlocks.concurrent.QueueLockBankAccount}, a thread may only do so once its slot is done with
+ * the previous round, and takes any later round in its slot as its grant.
+ *
+ * tryLock() does not take a ticket: it only succeeds if the next ticket is already granted.
+ */
+public class QueueLock extends SpinLock {
+    private static final int DEFAULT_MAX_THREADS = 64;
+
+    private static final long TICKET_MASK = 0xFFFFFFFFL;
+    private static final long ABORTED = 1L << 32;
+
+    /**
+     * Distance between two slots in the shared array.
+     */
+    private static final int STEP = CacheLine.LONGS;
+
+    // Each slot holds the last ticket granted there (with the ABORTED bit if its thread gave up waiting). Slot 0
+    // starts with ticket 0 granted, and every other slot as if granted one round before its first ticket. Slot i is at
+    // (i + 1) * STEP.
+    private final AtomicLongArray mSlots;
+    private final int mMask;
+    private final AtomicInteger mNextTicket;
+
+    /**
+     * The ticket of the thread currently holding the lock. Only accessed by the lock holder.
+     */
+    private int mOwnerTicket;
+
+    private final SpinPolicy mSpinPolicy;
+
+    public QueueLock() {
+        this(Math.max(DEFAULT_MAX_THREADS, Runtime.getRuntime().availableProcessors()), SpinPolicy.BUSY);
+    }
+
+    /**
+     * @param maxThreads The expected maximum number of threads, the number of slots is the next power of two.
+     * @param spinPolicy What waiting threads do each time they find their slot not granted yet.
+     */
+    public QueueLock(int maxThreads, SpinPolicy spinPolicy) {
+        if (maxThreads < 1 || maxThreads > 1 << 30) throw new IllegalArgumentException("Invalid number of threads");
+
+        int capacity = maxThreads == 1 ? 1 : Integer.highestOneBit(maxThreads - 1) << 1;
+        mSlots = new AtomicLongArray((capacity + 2) * STEP);
+        mMask = capacity - 1;
+        for (int i = 1; i < capacity; i++) {
+            mSlots.set(slot(i), (i - capacity) & TICKET_MASK);
+        }
+        mNextTicket = new AtomicInteger(0);
+        mSpinPolicy = spinPolicy;
+    }
+
+    @Override
+    public void lock() {
+        int ticket = mNextTicket.getAndIncrement();
+        int slot = slot(ticket);
+
+        for (int attempt = 0; !isGranted(mSlots.get(slot), ticket); attempt++) {
+            mSpinPolicy.spin(attempt);
+        }
+        mOwnerTicket = ticket;
+    }
+
+    @Override
+    protected boolean tryLockNanos(long nanos) {
+        if (nanos <= 0) {
+            // Only take the next ticket if it is already granted, a ticket taken can only be given up by waiting.
+            int ticket = mNextTicket.get();
+            if (mSlots.get(slot(ticket)) != (ticket & TICKET_MASK) || !mNextTicket.compareAndSet(ticket, ticket + 1)) {
+                return false;
+            }
+            mOwnerTicket = ticket;
+            return true;
+        }
+
+        long deadline = System.nanoTime() + nanos;
+        int ticket = mNextTicket.getAndIncrement();
+        int slot = slot(ticket);
+        long granted = ticket & TICKET_MASK;
+
+        for (int attempt = 0; ; attempt++) {
+            long value = mSlots.get(slot);
+            if (isGranted(value, ticket)) break;
+
+            // We may only give up once the slot is done with the previous round, otherwise the thread holding that
+            // ticket would take our mark as its grant. If the lock is handed to us right as we give up, the CAS fails
+            // and we take it.
+            if (System.nanoTime() - deadline >= 0 && (int) value == ticket - (mMask + 1)) {
+                if (mSlots.compareAndSet(slot, value, granted | ABORTED)) return false;
+                continue;
+            }
+            mSpinPolicy.spin(attempt);
+        }
+
+        mOwnerTicket = ticket;
+        return true;
+    }
+
+    @Override
+    public void unlock() {
+        int ticket = mOwnerTicket + 1;
+
+        while (true) {
+            int slot = slot(ticket);
+            long value = mSlots.get(slot);
+
+            // The thread holding this ticket gave up: the slot holds its mark, or a later round's. On to the next one.
+            if ((int) value - ticket >= 0) {
+                ticket++;
+                continue;
+            }
+
+            // The slot is still at the previous round. Fails only if the thread holding this ticket is giving up now.
+            if (mSlots.compareAndSet(slot, value, ticket & TICKET_MASK)) return;
+        }
+    }
+
+    /**
+     * @return true if the slot shows that the lock was handed to the ticket, see QueueLockBankAccount.
+     */
+    private static boolean isGranted(long value, int ticket) {
+        return (int) value - ticket >= 0;
+    }
+
+    private int slot(int ticket) {
+        return ((ticket & mMask) + 1) * STEP;
+    }
+}
@@ -0,0 +1,172 @@
+package edu.puc.mecolab.spinlocks.locks;
+
+import java.util.ArrayDeque;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Base class of the spin locks in this package, which are the algorithms of the bank accounts in
+ * {@link edu.puc.mecolab.spinlocks.concurrent} turned into {@link Lock Locks}. Subclasses only provide lock(), unlock()
+ * and a timed attempt, everything else is built on top of them:
+ *
+ * - Interruptible waiting is done in slices of {@link SpinLock#INTERRUPT_CHECK} at most, checking for interrupts in
+ * between. Timed attempts only check for interrupts before trying.
+ * - Conditions keep their waiting threads in a list guarded by the lock itself. A waiting thread releases the lock,
+ * parks until signalled and then acquires the lock again.
+ *
+ * As the algorithms they come from, these locks are not reentrant and do not keep track of their owner: unlocking a
+ * lock (or using its conditions) without holding it is not detected, and breaks the lock.
+ */
+public abstract class SpinLock implements Lock {
+    /**
+     * In nanoseconds.
+     */
+    private static final long INTERRUPT_CHECK = 1000000;
+
+    @Override
+    public abstract void lock();
+
+    @Override
+    public abstract void unlock();
+
+    /**
+     * Attempts to acquire the lock, giving up once the given time has elapsed. Gives up right away if the lock is
+     * not available and the time is 0 (or less).
+     *
+     * @return true if the lock was successfully acquired, false otherwise.
+     */
+    protected abstract boolean tryLockNanos(long nanos);
+
+    @Override
+    public void lockInterruptibly() throws InterruptedException {
+        if (Thread.interrupted()) throw new InterruptedException();
+        while (!tryLockNanos(INTERRUPT_CHECK)) {
+            if (Thread.interrupted()) throw new InterruptedException();
+        }
+    }
+
+    @Override
+    public boolean tryLock() {
+        return tryLockNanos(0);
+    }
+
+    @Override
+    public boolean tryLock(long time, TimeUnit unit) throws InterruptedException {
+        if (Thread.interrupted()) throw new InterruptedException();
+        return tryLockNanos(unit.toNanos(time));
+    }
+
+    @Override
+    public Condition newCondition() {
+        return new SpinCondition();
+    }
+
+    private class SpinCondition implements Condition {
+        /**
+         * Threads waiting on the condition, in order. Only accessed while holding the lock.
+         */
+        private final ArrayDeque<Waiter> mWaiters = new ArrayDeque<>();
+
+        @Override
+        public void await() throws InterruptedException {
+            await(false, 0, true);
+        }
+
+        @Override
+        public void awaitUninterruptibly() {
+            try {
+                await(false, 0, false);
+            } catch (InterruptedException e) {
+                // Never thrown when not interruptible.
+                throw new AssertionError(e);
+            }
+        }
+
+        @Override
+        public long awaitNanos(long nanosTimeout) throws InterruptedException {
+            return await(true, nanosTimeout, true);
+        }
+
+        @Override
+        public boolean await(long time, TimeUnit unit) throws InterruptedException {
+            return await(true, unit.toNanos(time), true) > 0;
+        }
+
+        @Override
+        public boolean awaitUntil(Date deadline) throws InterruptedException {
+            long nanos = TimeUnit.MILLISECONDS.toNanos(deadline.getTime() - System.currentTimeMillis());
+            return await(true, nanos, true) > 0;
+        }
+
+        @Override
+        public void signal() {
+            Waiter waiter = mWaiters.pollFirst();
+            if (waiter != null) waiter.wake();
+        }
+
+        @Override
+        public void signalAll() {
+            Waiter waiter;
+            while ((waiter = mWaiters.pollFirst()) != null) {
+                waiter.wake();
+            }
+        }
+
+        /**
+         * Must be called while holding the lock, which is held again on return (even if an exception is thrown).
+         *
+         * @return The time left, if timed.
+         */
+        private long await(boolean timed, long nanos, boolean interruptible) throws InterruptedException {
+            if (interruptible && Thread.interrupted()) throw new InterruptedException();
+
+            long deadline = System.nanoTime() + nanos;
+            Waiter waiter = new Waiter();
+            mWaiters.addLast(waiter);
+            unlock();
+
+            // Signalling sets the flag BEFORE unparking, so we cannot miss it. Spurious wake-ups are simply ignored.
+            boolean interrupted = false;
+            while (!waiter.mSignalled) {
+                if (timed) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) break;
+                    LockSupport.parkNanos(this, remaining);
+                } else {
+                    LockSupport.park(this);
+                }
+
+                if (Thread.interrupted()) {
+                    interrupted = true;
+                    if (interruptible) break;
+                }
+            }
+
+            lock();
+
+            // Signalled waiters have already been removed by the signalling thread. A thread that was signalled
+            // returns normally even if interrupted, so the signal is never lost.
+            boolean signalled = waiter.mSignalled;
+            if (!signalled) mWaiters.remove(waiter);
+            if (interrupted) {
+                if (interruptible && !signalled) throw new InterruptedException();
+                Thread.currentThread().interrupt();
+            }
+            return deadline - System.nanoTime();
+        }
+    }
+
+    private static class Waiter {
+        private final Thread mThread = Thread.currentThread();
+        // Set by the signalling thread, read by the waiting one. Must be declared volatile.
+        private volatile boolean mSignalled;
+
+        private void wake() {
+            mSignalled = true;
+            LockSupport.unpark(mThread);
+        }
+    }
+}
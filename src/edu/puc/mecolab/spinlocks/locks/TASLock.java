@@ -0,0 +1,48 @@
+package edu.puc.mecolab.spinlocks.locks;
+
+import edu.puc.mecolab.spinlocks.concurrent.SpinPolicy;
+import edu.puc.mecolab.spinlocks.concurrent.TASLockBankAccount;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Test-and-set lock, see {@link TASLockBankAccount}.
+ */
+public class TASLock extends SpinLock {
+    private final AtomicBoolean mFlag;
+    private final SpinPolicy mSpinPolicy;
+
+    public TASLock() {
+        this(SpinPolicy.BUSY);
+    }
+
+    /**
+     * @param spinPolicy What waiting threads do each time they find the lock busy.
+     */
+    public TASLock(SpinPolicy spinPolicy) {
+        mFlag = new AtomicBoolean(false);
+        mSpinPolicy = spinPolicy;
+    }
+
+    @Override
+    public void lock() {
+        for (int attempt = 0; mFlag.getAndSet(true); attempt++) {
+            mSpinPolicy.spin(attempt);
+        }
+    }
+
+    @Override
+    protected boolean tryLockNanos(long nanos) {
+        long deadline = System.nanoTime() + nanos;
+        for (int attempt = 0; mFlag.getAndSet(true); attempt++) {
+            if (System.nanoTime() - deadline >= 0) return false;
+            mSpinPolicy.spin(attempt);
+        }
+        return true;
+    }
+
+    @Override
+    public void unlock() {
+        mFlag.set(false);
+    }
+}
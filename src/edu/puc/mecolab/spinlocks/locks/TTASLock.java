@@ -0,0 +1,49 @@
+package edu.puc.mecolab.spinlocks.locks;
+
+import edu.puc.mecolab.spinlocks.concurrent.SpinPolicy;
+import edu.puc.mecolab.spinlocks.concurrent.TTASLockBankAccount;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Test-and-test-and-set lock, see {@link TTASLockBankAccount}.
+ */
+public class TTASLock extends SpinLock {
+    private final AtomicBoolean mFlag;
+    private final SpinPolicy mSpinPolicy;
+
+    public TTASLock() {
+        this(SpinPolicy.BUSY);
+    }
+
+    /**
+     * @param spinPolicy What waiting threads do each time they find the lock busy.
+     */
+    public TTASLock(SpinPolicy spinPolicy) {
+        mFlag = new AtomicBoolean(false);
+        mSpinPolicy = spinPolicy;
+    }
+
+    @Override
+    public void lock() {
+        // The CAS is only attempted once the lock looks free, waiting threads spin on their cached copy of the flag.
+        for (int attempt = 0; mFlag.get() || !mFlag.compareAndSet(false, true); attempt++) {
+            mSpinPolicy.spin(attempt);
+        }
+    }
+
+    @Override
+    protected boolean tryLockNanos(long nanos) {
+        long deadline = System.nanoTime() + nanos;
+        for (int attempt = 0; mFlag.get() || !mFlag.compareAndSet(false, true); attempt++) {
+            if (System.nanoTime() - deadline >= 0) return false;
+            mSpinPolicy.spin(attempt);
+        }
+        return true;
+    }
+
+    @Override
+    public void unlock() {
+        mFlag.set(false);
+    }
+}
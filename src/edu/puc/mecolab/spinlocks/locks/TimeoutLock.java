@@ -0,0 +1,116 @@
+package edu.puc.mecolab.spinlocks.locks;
+
+import edu.puc.mecolab.spinlocks.concurrent.SpinPolicy;
+import edu.puc.mecolab.spinlocks.concurrent.TimeoutLockBankAccount;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Queue lock with timeouts, see {@link TimeoutLockBankAccount}. Threads waiting in lock() for longer than the threshold
+ * give up their place in the queue, yield their core and try again.
+ *
+ * Each thread's nodes are looked up once per acquisition. The holder's ones are then kept in a field for unlocking.
+ */
+public class TimeoutLock extends SpinLock {
+    /**
+     * In nanoseconds.
+     */
+    private static final long THRESHOLD = 10000;
+
+    private static final Node AVAILABLE = new Node();
+
+    private final AtomicReference<Node> mTail;
+    private final ThreadLocal<Handle> mHandle;
+
+    /**
+     * The handle of the thread currently holding the lock. Only accessed by the lock holder.
+     */
+    private Handle mHolder;
+
+    private final long mThreshold;
+    private final SpinPolicy mSpinPolicy;
+
+    public TimeoutLock() {
+        this(THRESHOLD, SpinPolicy.BUSY);
+    }
+
+    /**
+     * @param threshold Time a thread may wait in lock() before trying again, in nanoseconds.
+     * @param spinPolicy What waiting threads do each time they find their predecessor still holding the lock.
+     */
+    public TimeoutLock(long threshold, SpinPolicy spinPolicy) {
+        if (threshold < 1) throw new IllegalArgumentException("Invalid threshold");
+
+        // The queue starts with an already released node, so every thread has a predecessor.
+        Node node = new Node();
+        node.mPredecessor = AVAILABLE;
+        mTail = new AtomicReference<>(node);
+
+        mHandle = ThreadLocal.withInitial(Handle::new);
+        mThreshold = threshold;
+        mSpinPolicy = spinPolicy;
+    }
+
+    @Override
+    public void lock() {
+        Handle handle = mHandle.get();
+        while (!tryLock(handle, mThreshold)) {
+            Thread.yield();
+        }
+    }
+
+    @Override
+    protected boolean tryLockNanos(long nanos) {
+        return tryLock(mHandle.get(), nanos);
+    }
+
+    @Override
+    public void unlock() {
+        Handle handle = mHolder;
+        Node myNode = handle.mNode;
+        // Our predecessor's node is no longer used by anyone, it becomes ours for the next lock.
+        handle.mNode = handle.mPredecessor;
+        myNode.mPredecessor = AVAILABLE;
+    }
+
+    private boolean tryLock(Handle handle, long nanos) {
+        long deadline = System.nanoTime() + nanos;
+
+        Node myNode = handle.mNode;
+        myNode.mPredecessor = null;
+
+        Node myPredecessor = mTail.getAndSet(myNode);
+        for (int attempt = 0; ; attempt++) {
+            Node mySecondPredecessor = myPredecessor.mPredecessor;
+            if (mySecondPredecessor == AVAILABLE) {
+                handle.mPredecessor = myPredecessor;
+                mHolder = handle;
+                return true;
+            } else if (mySecondPredecessor != null) {
+                // Our predecessor gave up, we wait for its own predecessor instead.
+                myPredecessor = mySecondPredecessor;
+            } else if (System.nanoTime() - deadline >= 0) {
+                break;
+            } else {
+                mSpinPolicy.spin(attempt);
+            }
+        }
+
+        // If no one is behind us, we can just leave the queue and keep our node. Otherwise, our successor is told who to
+        // wait for instead of us, and our node is left to it.
+        if (!mTail.compareAndSet(myNode, myPredecessor)) {
+            myNode.mPredecessor = myPredecessor;
+            handle.mNode = new Node();
+        }
+        return false;
+    }
+
+    private static class Handle {
+        private Node mNode = new Node();
+        private Node mPredecessor;
+    }
+
+    private static class Node {
+        private volatile Node mPredecessor = null;
+    }
+}